@@ -0,0 +1,480 @@
+/*
+ * Copyright (C) 2019-2021 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.chainfire.holeylight.test;
+
+import android.app.Notification;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.service.notification.StatusBarNotification;
+import android.util.TypedValue;
+
+import com.airbnb.lottie.LottieComposition;
+import com.airbnb.lottie.LottieCompositionFactory;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import eu.chainfire.holeylight.BuildConfig;
+import eu.chainfire.holeylight.animation.IconBitmapCache;
+import eu.chainfire.holeylight.animation.JSONAnimationManipulator;
+import eu.chainfire.holeylight.animation.NotificationAnimation;
+import eu.chainfire.holeylight.animation.SpritePlayer;
+import eu.chainfire.holeylight.animation.SpriteSheet;
+import eu.chainfire.holeylight.animation.SpriteSheetPool;
+import eu.chainfire.holeylight.misc.ColorAnalyzer;
+import eu.chainfire.holeylight.misc.MotionSensor;
+import eu.chainfire.holeylight.misc.Settings;
+import eu.chainfire.holeylight.misc.Slog;
+import eu.chainfire.holeylight.service.NotificationTracker;
+
+/*  To start:
+
+    - adb shell am broadcast -a eu.chainfire.holeylight.benchmark eu.chainfire.holeylight
+
+    - wait for "BENCHMARK COMPLETE" or "BENCHMARK FAILED" to be logged
+
+    - adb pull /sdcard/Android/data/eu.chainfire.holeylight/files/benchmark.json
+
+    Results are also logged as a single line. Timings are in nanoseconds, compare runs from
+    the same device only. Accessibility service must be running. The run fails if a check
+    (such as allocation-free rendering) fails, "failures" in the results is then non-zero.
+ */
+
+public class BenchmarkRunner {
+    private static String TAG = "Benchmark";
+
+    private static final String RESULT_FILE = "benchmark.json";
+
+    private static final int[] COLORS_SINGLE = new int[] { 0xFF2196F3 };
+    private static final int[] COLORS_MULTI = new int[] { 0xFF2196F3, 0xFFF44336, 0xFF4CAF50, 0xFFFFEB3B, 0xFF9C27B0 };
+    private static final int[] COLORS_TSP = new int[] { 0xFF2196F3, 0xFFF44336, 0xFF4CAF50 };
+    private static final int[] TRACKER_SIZES = new int[] { 10, 100, 1000 };
+    private static final int ICON_CORPUS = 50;
+    private static final int MOTION_TRACE_HZ = 25;
+    private static final int MOTION_TRACE_PICKUP_SECONDS = 15;
+    private static final int ALLOCATION_ITERATIONS = 100;
+
+    private static void log(String msg, Object... params) {
+        if ((params != null) && (params.length > 0)) {
+            msg = String.format(Locale.ENGLISH, msg, params);
+        }
+        Slog.d(TAG, msg);
+    }
+
+    private static volatile BenchmarkRunner runner = null;
+
+    public static void start(Context context) {
+        synchronized (BenchmarkRunner.class) {
+            if (runner != null) return;
+            log("Start");
+            runner = new BenchmarkRunner(context, () -> {
+                synchronized (BenchmarkRunner.class) {
+                    runner = null;
+                }
+            });
+        }
+    }
+
+    public static boolean isRunning() {
+        synchronized (BenchmarkRunner.class) {
+            return runner != null;
+        }
+    }
+
+    private interface CompletionCallback {
+        void onComplete();
+    }
+
+    private interface Benchmark {
+        void run(int iteration) throws Exception;
+    }
+
+    private interface Setup {
+        void run() throws Exception;
+    }
+
+    private final CompletionCallback onComplete;
+    private final Context context;
+    private final HandlerThread handlerThreadThread;
+    private final float dpToPx;
+    private final JSONArray results = new JSONArray();
+    private int failures = 0;
+
+    private BenchmarkRunner(Context context, CompletionCallback onComplete) {
+        this.context = context;
+        this.onComplete = onComplete;
+        dpToPx = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 1, context.getResources().getDisplayMetrics());
+        handlerThreadThread = new HandlerThread(BuildConfig.APPLICATION_ID + ":benchmarkRunner");
+        handlerThreadThread.start();
+        new Handler(handlerThreadThread.getLooper()).post(runBenchmarks);
+    }
+
+    private final Runnable runBenchmarks = () -> {
+        try {
+            for (int size : TRACKER_SIZES) {
+                measureTracker(size);
+            }
+
+            measureColorExtraction();
+
+            measureMotionDetector();
+
+            SpritePlayer spritePlayer = createSpritePlayer();
+            try {
+                Set<String> seen = new HashSet<>();
+                for (Map.Entry<String, String> entry : NotificationAnimation.test_getDeviceJsons().entrySet()) {
+                    String device = entry.getKey();
+                    String json = JSONAnimationManipulator.modify(entry.getValue(), 0);
+
+                    measure("json_modify", device, 10, 100, null, i -> JSONAnimationManipulator.modify(entry.getValue(), (i % 4) * dpToPx));
+
+                    // many devices share the same animation, only render each one once
+                    if (!seen.add(json)) continue;
+
+                    LottieComposition composition = LottieCompositionFactory.fromJsonStringSync(json, null).getValue();
+                    if (composition == null) {
+                        log("Composition failed for %s", device);
+                        continue;
+                    }
+                    int width = composition.getBounds().width();
+                    int height = composition.getBounds().height();
+
+                    final AtomicReference<SpriteSheet.Source> source = new AtomicReference<>();
+                    measure("superimposed_frame", device, 1, 5, () -> source.set(new SpriteSheet.Source(composition)), i -> {
+                        source.get().acquireSuperimposedFrame();
+                        source.get().releaseSuperimposedFrame();
+                    });
+                    measure("black_frame", device, 1, 5, () -> {
+                        source.set(new SpriteSheet.Source(composition));
+                        source.get().acquireSuperimposedFrame();
+                        source.get().releaseSuperimposedFrame();
+                    }, i -> source.get().getBlackFrame());
+
+                    for (SpritePlayer.Mode mode : new SpritePlayer.Mode[] { SpritePlayer.Mode.SWIRL, SpritePlayer.Mode.BLINK, SpritePlayer.Mode.SINGLE }) {
+                        measure("sprite_sheet_" + mode.name().toLowerCase(Locale.ENGLISH), device, 1, 3, null, i -> {
+                            SpriteSheet ss = SpriteSheet.fromLottieComposition(composition, width, height, mode);
+                            if (ss != null) ss.release();
+                        });
+                    }
+
+                    SpriteSheet swirl = SpriteSheet.fromLottieComposition(composition, width, height, SpritePlayer.Mode.SWIRL);
+                    SpriteSheet single = SpriteSheet.fromLottieComposition(composition, width, height, SpritePlayer.Mode.SINGLE);
+                    Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                    Canvas canvas = new Canvas(bitmap);
+                    try {
+                        spritePlayer.setPreTinted(false);
+                        measureRender(spritePlayer, canvas, "render_single", device, SpritePlayer.Mode.SWIRL, COLORS_SINGLE, swirl);
+                        measureRender(spritePlayer, canvas, "render_multi", device, SpritePlayer.Mode.SINGLE, COLORS_MULTI, single);
+                        spritePlayer.setPreTinted(true);
+                        measureRender(spritePlayer, canvas, "render_multi_pretinted", device, SpritePlayer.Mode.SINGLE, COLORS_MULTI, single);
+                        measureRender(spritePlayer, canvas, "render_tsp", device, SpritePlayer.Mode.TSP, COLORS_TSP, null);
+                    } finally {
+                        if (swirl != null) swirl.release();
+                        if (single != null) single.release();
+                        bitmap.recycle();
+                    }
+                }
+            } finally {
+                spritePlayer.test_release();
+            }
+
+            writeResults();
+            if (failures == 0) {
+                log("BENCHMARK COMPLETE");
+            } else {
+                Slog.e(TAG, "BENCHMARK FAILED [%d failures]", failures);
+            }
+        } catch (Exception e) {
+            Slog.e(TAG, "Exception: %s", e);
+            e.printStackTrace();
+        } finally {
+            handlerThreadThread.quitSafely();
+            onComplete.onComplete();
+        }
+    };
+
+    private SpritePlayer createSpritePlayer() throws InterruptedException {
+        // views need to be created on the main thread
+        final AtomicReference<SpritePlayer> ret = new AtomicReference<>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        new Handler(Looper.getMainLooper()).post(() -> {
+            ret.set(new SpritePlayer(context));
+            latch.countDown();
+        });
+        latch.await();
+        return ret.get();
+    }
+
+    @SuppressWarnings("deprecation")
+    private StatusBarNotification createNotification(int id, long postTime) {
+        Notification notification = new Notification();
+        notification.when = postTime;
+        return new StatusBarNotification("eu.chainfire.holeylight.benchmark", "eu.chainfire.holeylight.benchmark", id, null, Process.myUid(), 0, notification, Process.myUserHandle(), null, postTime);
+    }
+
+    private void measureTracker(int size) throws Exception {
+        // steady state, and with one notification replaced each iteration
+        long now = System.currentTimeMillis();
+        StatusBarNotification[] active = new StatusBarNotification[size];
+        for (int i = 0; i < size; i++) {
+            active[i] = createNotification(i, now - i);
+        }
+        String device = "n" + size;
+        NotificationTracker tracker = NotificationTracker.test_createInstance();
+        tracker.prune(active, true, 0, null, true);
+        measure("tracker_prune", device, 10, 100, null, i -> tracker.prune(active, true, 0, null, true));
+        measure("tracker_prune_replace", device, 10, 100, () -> active[0] = createNotification(0, active[0].getPostTime() + 1), i -> tracker.prune(active, true, 0, null, true));
+    }
+
+    private void measureColorExtraction() throws Exception {
+        // launcher icons of installed apps as corpus
+        PackageManager pm = context.getPackageManager();
+        List<Drawable> icons = new ArrayList<>();
+        for (ResolveInfo info : pm.queryIntentActivities(new Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_LAUNCHER), 0)) {
+            if (icons.size() >= ICON_CORPUS) break;
+            icons.add(info.loadIcon(pm));
+        }
+        if (icons.size() == 0) return;
+        String corpus = "icons" + icons.size();
+
+        for (ColorAnalyzer.Extraction extraction : ColorAnalyzer.Extraction.values()) {
+            String name = extraction.name().toLowerCase(Locale.ENGLISH);
+            measure("color_extract_" + name, corpus, icons.size(), icons.size() * 4, null, i -> ColorAnalyzer.test_extract(icons.get(i % icons.size()), extraction, ColorAnalyzer.ANALYZE_SIZE));
+
+            // hue stability: the same icon analyzed at half resolution should give the same hue
+            float[] hsvFull = new float[3];
+            float[] hsvHalf = new float[3];
+            double total = 0;
+            double max = 0;
+            int count = 0;
+            for (Drawable icon : icons) {
+                Integer full = ColorAnalyzer.test_extract(icon, extraction, ColorAnalyzer.ANALYZE_SIZE);
+                Integer half = ColorAnalyzer.test_extract(icon, extraction, ColorAnalyzer.ANALYZE_SIZE / 2);
+                if ((full == null) || (half == null)) continue;
+                Color.colorToHSV(full, hsvFull);
+                Color.colorToHSV(half, hsvHalf);
+                if ((hsvFull[1] < 0.1f) || (hsvHalf[1] < 0.1f)) continue; // gray, no meaningful hue
+                double drift = Math.abs(hsvFull[0] - hsvHalf[0]);
+                if (drift > 180) drift = 360 - drift;
+                total += drift;
+                max = Math.max(max, drift);
+                count++;
+            }
+
+            JSONObject result = new JSONObject();
+            result.put("name", "color_hue_drift_" + name);
+            result.put("device", corpus);
+            result.put("icons", count);
+            result.put("mean_deg", count > 0 ? total / count : 0);
+            result.put("max_deg", max);
+            results.put(result);
+
+            log("color_hue_drift_%s [%s] mean %.1f max %.1f degrees", name, corpus, count > 0 ? total / count : 0, max);
+        }
+    }
+
+    private float[] createMotionTrace() {
+        // 25 Hz: 15 seconds flat on a desk, picked up (tilted 60 degrees) over a second, then held.
+        // x, y, z per sample, with a little sensor noise
+        Random random = new Random(0);
+        int samples = MOTION_TRACE_HZ * 20;
+        float[] trace = new float[samples * 3];
+        for (int i = 0; i < samples; i++) {
+            float seconds = (float)i / MOTION_TRACE_HZ;
+            float tilt = (float)Math.toRadians(60f * Math.min(Math.max(seconds - MOTION_TRACE_PICKUP_SECONDS, 0f), 1f));
+            trace[i * 3] = (float)random.nextGaussian() * 0.02f;
+            trace[i * 3 + 1] = 9.81f * (float)Math.sin(tilt) + (float)random.nextGaussian() * 0.02f;
+            trace[i * 3 + 2] = 9.81f * (float)Math.cos(tilt) + (float)random.nextGaussian() * 0.02f;
+        }
+        return trace;
+    }
+
+    private int replayMotionTrace(MotionSensor.Detector detector, float[] trace, long[] pickup) {
+        int transitions = 0;
+        detector.reset(1);
+        for (int i = 0; i < trace.length / 3; i++) {
+            long now = 1 + (i * 1000L) / MOTION_TRACE_HZ;
+            if (detector.onSample(now, trace[i * 3], trace[i * 3 + 1], trace[i * 3 + 2]) == MotionSensor.Detector.Result.TRANSITION) {
+                transitions++;
+                if ((pickup != null) && (pickup[0] == 0) && (detector.getMotionState() == MotionSensor.MotionState.MOVING)) {
+                    pickup[0] = now;
+                }
+            }
+        }
+        return transitions;
+    }
+
+    private void measureMotionDetector() throws Exception {
+        float[] trace = createMotionTrace();
+        MotionSensor.Detector detector = new MotionSensor.Detector();
+        String device = "trace" + (trace.length / 3);
+
+        measure("motion_detector", device, 5, 50, null, i -> replayMotionTrace(detector, trace, null));
+
+        // the pickup should be detected once, shortly after it starts
+        long[] pickup = new long[1];
+        int transitions = replayMotionTrace(detector, trace, pickup);
+        long delay = pickup[0] > 0 ? pickup[0] - 1 - MOTION_TRACE_PICKUP_SECONDS * 1000L : -1;
+
+        JSONObject result = new JSONObject();
+        result.put("name", "motion_replay");
+        result.put("device", device);
+        result.put("transitions", transitions);
+        result.put("pickup_delay_ms", delay);
+        results.put(result);
+
+        log("motion_replay [%s] transitions %d pickup delay %d ms", device, transitions, delay);
+    }
+
+    private void measureRender(SpritePlayer spritePlayer, Canvas canvas, String name, String device, SpritePlayer.Mode mode, int[] colors, SpriteSheet spriteSheet) throws Exception {
+        if ((spriteSheet == null) && !spritePlayer.isTSPMode(mode)) return;
+        spritePlayer.test_prepareRender(mode, colors, canvas.getWidth(), canvas.getHeight());
+        int frames = spriteSheet != null ? spriteSheet.getFrames() : 1;
+        // pre-tinted variants are baked on the loader thread after the first frame asks for them
+        spritePlayer.test_renderFrame(canvas, spriteSheet, 0, 0f);
+        spritePlayer.test_awaitLoader();
+        measure(name, device, frames, 250, null, i -> spritePlayer.test_renderFrame(canvas, spriteSheet, i % frames, 0f));
+
+        // rendering a frame should not allocate once warmed up, also not when the rotation moves
+        // on. A full rotation as doFrame() goes through it over the burn-in cycle, once to warm up
+        // (pre-tinted variants are baked on the loader thread) and once counted
+        Benchmark rotation = i -> spritePlayer.test_renderFrame(canvas, spriteSheet, i % frames, (i * 360f) / ALLOCATION_ITERATIONS);
+        for (int i = 0; i < ALLOCATION_ITERATIONS; i++) {
+            rotation.run(i);
+        }
+        spritePlayer.test_awaitLoader();
+        measureAllocations(name, device, ALLOCATION_ITERATIONS, rotation);
+    }
+
+    @SuppressWarnings("deprecation")
+    private void measureAllocations(String name, String device, int iterations, Benchmark benchmark) throws Exception {
+        // counts this thread only, call after the benchmark has been warmed up
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        try {
+            for (int i = 0; i < iterations; i++) {
+                benchmark.run(i);
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        int count = Debug.getThreadAllocCount();
+        int size = Debug.getThreadAllocSize();
+
+        JSONObject result = new JSONObject();
+        result.put("name", name + "_allocations");
+        result.put("device", device);
+        result.put("iterations", iterations);
+        result.put("allocations", count);
+        result.put("bytes", size);
+        result.put("pass", count == 0);
+        results.put(result);
+
+        if (count == 0) {
+            log("%s_allocations [%s] none", name, device);
+        } else {
+            failures++;
+            Slog.e(TAG, "%s_allocations [%s] FAIL %d allocations (%d bytes) in %d iterations, expected none", name, device, count, size, iterations);
+        }
+    }
+
+    private void measure(String name, String device, int warmup, int iterations, Setup setup, Benchmark benchmark) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            if (setup != null) setup.run();
+            benchmark.run(i);
+        }
+
+        long[] timings = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            if (setup != null) setup.run();
+            long start = System.nanoTime();
+            benchmark.run(i);
+            timings[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(timings);
+
+        long total = 0;
+        for (long timing : timings) total += timing;
+
+        JSONObject result = new JSONObject();
+        result.put("name", name);
+        result.put("device", device);
+        result.put("iterations", iterations);
+        result.put("mean_ns", total / iterations);
+        result.put("median_ns", timings[iterations / 2]);
+        result.put("p90_ns", timings[(iterations * 9) / 10]);
+        result.put("min_ns", timings[0]);
+        result.put("max_ns", timings[iterations - 1]);
+        results.put(result);
+
+        log("%s [%s] median %.3f ms", name, device, timings[iterations / 2] / 1000000.0);
+    }
+
+    private void writeResults() throws Exception {
+        JSONObject root = new JSONObject();
+        root.put("version_code", BuildConfig.VERSION_CODE);
+        root.put("version_name", BuildConfig.VERSION_NAME);
+        root.put("device", Build.DEVICE);
+        root.put("sdk", Build.VERSION.SDK_INT);
+        root.put("timestamp", System.currentTimeMillis());
+        root.put("results", results);
+        root.put("failures", failures);
+        root.put("sprite_sheet_pool", SpriteSheetPool.getInstance().getOccupancy().toString());
+        root.put("icon_bitmap_cache", IconBitmapCache.getInstance().getOccupancy().toString());
+        root.put("settings_writes", Settings.getInstance(context).getWriteStats().toString());
+
+        String json = root.toString();
+        log("RESULTS %s", json);
+
+        File dir = context.getExternalFilesDir(null);
+        if (dir == null) dir = context.getFilesDir();
+        File file = new File(dir, RESULT_FILE);
+        try (FileOutputStream os = new FileOutputStream(file)) {
+            os.write(json.getBytes(StandardCharsets.UTF_8));
+        }
+        log("Written to %s", file.getAbsolutePath());
+    }
+}
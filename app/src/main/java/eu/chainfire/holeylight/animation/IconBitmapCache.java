@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2019-2021 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.chainfire.holeylight.animation;
+
+import android.graphics.Bitmap;
+import android.graphics.BlendMode;
+import android.graphics.Canvas;
+import android.graphics.PorterDuff;
+import android.graphics.drawable.Drawable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import eu.chainfire.holeylight.misc.Slog;
+
+/*
+    Notification icons rasterized and tinted at the exact size the TSP renderer draws them, so
+    rendering a frame only blits bitmaps.
+
+    Keyed by icon id, color and size. Least recently used bitmaps are dropped above MAX_BYTES.
+    They are not recycled, a renderer may still be drawing an evicted bitmap; it is simply left
+    to the garbage collector.
+ */
+@SuppressWarnings({ "WeakerAccess", "UnusedReturnValue" })
+public class IconBitmapCache {
+    private static final String TAG = "IconBitmapCache";
+
+    private static final long MAX_BYTES = 2L * 1024L * 1024L;
+
+    // icon sizes used by the TSP renderer, multiple icons are drawn small, a single one large
+    public static final int SIZE_SMALL_DP = 24;
+    public static final int SIZE_LARGE_DP = 48;
+
+    private static IconBitmapCache instance;
+    public static IconBitmapCache getInstance() {
+        synchronized (IconBitmapCache.class) {
+            if (instance == null) {
+                instance = new IconBitmapCache();
+            }
+            return instance;
+        }
+    }
+
+    public static class Occupancy {
+        public final int bitmaps;
+        public final long bytes;
+        public final long maxBytes;
+        public final long hits;
+        public final long misses;
+
+        private Occupancy(int bitmaps, long bytes, long maxBytes, long hits, long misses) {
+            this.bitmaps = bitmaps;
+            this.bytes = bytes;
+            this.maxBytes = maxBytes;
+            this.hits = hits;
+            this.misses = misses;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH, "bitmaps:%d bytes:%dK max:%dK hits:%d misses:%d", bitmaps, bytes / 1024, maxBytes / 1024, hits, misses);
+        }
+    }
+
+    private final Map<String, Bitmap> bitmaps = new LinkedHashMap<>(16, 0.75f, true); // least recently used first
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    private IconBitmapCache() {
+    }
+
+    private static String key(String iconId, int color, int size) {
+        return String.format(Locale.ENGLISH, "%s_%08x_%d", iconId, color, size);
+    }
+
+    /**
+     * Returns the icon tinted with color at size x size pixels. The drawable is only requested
+     * if we don't have the bitmap yet. Returns null if there is no drawable.
+     */
+    public Bitmap get(String iconId, int color, int size, Supplier<Drawable> drawable) {
+        if ((iconId == null) || (size <= 0)) return null;
+        String key = key(iconId, color, size);
+        synchronized (this) {
+            Bitmap bitmap = bitmaps.get(key);
+            if (bitmap != null) {
+                hits++;
+                return bitmap;
+            }
+            misses++;
+        }
+
+        Drawable d = drawable.get();
+        if (d == null) return null;
+        Bitmap bitmap = rasterize(d, color, size);
+
+        synchronized (this) {
+            Bitmap existing = bitmaps.put(key, bitmap);
+            if (existing != null) bytes -= existing.getAllocationByteCount();
+            bytes += bitmap.getAllocationByteCount();
+            trim();
+        }
+        return bitmap;
+    }
+
+    private static Bitmap rasterize(Drawable drawable, int color, int size) {
+        // don't leave our tint on state shared with other drawables
+        Drawable d = drawable.mutate();
+        d.setColorFilter(null);
+        d.setTintList(null);
+        d.setTintBlendMode(BlendMode.SRC_IN);
+        d.setTintMode(PorterDuff.Mode.SRC_IN);
+        d.setTint(color);
+        d.setBounds(0, 0, size, size);
+
+        Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        d.draw(new Canvas(bitmap));
+        bitmap.prepareToDraw();
+        return bitmap;
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, Bitmap>> iterator = bitmaps.entrySet().iterator();
+        while ((bytes > MAX_BYTES) && iterator.hasNext()) {
+            Map.Entry<String, Bitmap> entry = iterator.next();
+            bytes -= entry.getValue().getAllocationByteCount();
+            iterator.remove();
+            Slog.d(TAG, "Evicted %s", entry.getKey());
+        }
+    }
+
+    public synchronized void clear() {
+        bitmaps.clear();
+        bytes = 0;
+    }
+
+    public synchronized Occupancy getOccupancy() {
+        return new Occupancy(bitmaps.size(), bytes, MAX_BYTES, hits, misses);
+    }
+}
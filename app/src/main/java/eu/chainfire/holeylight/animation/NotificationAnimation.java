@@ -19,11 +19,11 @@
 package eu.chainfire.holeylight.animation;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.graphics.Point;
 import android.graphics.Rect;
 import android.graphics.RectF;
-import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.util.TypedValue;
 import android.view.View;
@@ -33,7 +33,10 @@ import com.airbnb.lottie.LottieComposition;
 import com.airbnb.lottie.LottieCompositionFactory;
 import com.android.systemui.VIDirector;
 
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 import androidx.core.view.WindowInsetsCompat;
 import eu.chainfire.holeylight.misc.CameraCutout;
@@ -105,6 +108,15 @@ public class NotificationAnimation implements Settings.OnSettingsChangedListener
             /* Unsupported        */ new DeviceSpecs("_unsupported", true, null, 0, 0, 0, 0, 3f, false, false)
     };
 
+    // Benchmark hook, device name -> animation json, for all specs that have one
+    public static Map<String, String> test_getDeviceJsons() {
+        Map<String, String> ret = new LinkedHashMap<>();
+        for (DeviceSpecs spec : deviceSpecs) {
+            if (spec.json != null) ret.put(spec.device, spec.json);
+        }
+        return ret;
+    }
+
     private static DeviceSpecs findDevice(String name) {
         name = name.toLowerCase(Locale.ENGLISH);
         for (DeviceSpecs spec : deviceSpecs) {
@@ -129,6 +141,8 @@ public class NotificationAnimation implements Settings.OnSettingsChangedListener
     private final VIDirector viDirector2;
 
     private volatile LottieComposition lottieComposition;
+    private volatile String lottieCompositionHash;
+    private volatile SpriteSheet.Source spriteSheetSource;
     private volatile boolean play = false;
 
     private volatile int[] colors = new int[] { Color.WHITE, Color.GREEN, Color.RED };
@@ -265,7 +279,7 @@ public class NotificationAnimation implements Settings.OnSettingsChangedListener
             }
         });
 
-        settings.registerOnSettingsChangedListener(this);
+        settings.registerOnSettingsChangedListener(this, Settings.Group.DIMENSIONS);
 
         test_lastHideAOD = false;
     }
@@ -275,7 +289,11 @@ public class NotificationAnimation implements Settings.OnSettingsChangedListener
         float dpToPx = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 1, spritePlayer.getContext().getResources().getDisplayMetrics());
 
         currentDpAddThickness = getDpAddThickness();
-        LottieCompositionFactory.fromJsonString(JSONAnimationManipulator.modify(spec.json, currentDpAddThickness * dpToPx), null).addListener(result -> {
+        String json = JSONAnimationManipulator.modify(spec.json, currentDpAddThickness * dpToPx);
+        String hash = SpriteSheetCache.hash(json);
+        LottieCompositionFactory.fromJsonString(json, null).addListener(result -> {
+            lottieCompositionHash = hash;
+            spriteSheetSource = new SpriteSheet.Source(result);
             lottieComposition = result;
             spritePlayer.forceReload();
             applyDimensions();
@@ -309,7 +327,8 @@ public class NotificationAnimation implements Settings.OnSettingsChangedListener
     }
 
     @Override
-    public void onSettingsChanged() {
+    public void onSettingsChanged(Set<Settings.Group> groups, Settings.Snapshot previous, Settings.Snapshot current) {
+        if (current.sameDimensions(previous)) return;
         if (getDpAddThickness() != currentDpAddThickness) {
             loadJson();
         } else {
@@ -345,7 +364,8 @@ public class NotificationAnimation implements Settings.OnSettingsChangedListener
 
             // most of this could just be hardcoded, but whatever
 
-            RectF cutoutRect = settings.getCutoutAreaRect();
+            Settings.Snapshot values = settings.getSnapshot();
+            RectF cutoutRect = values.getCutoutAreaRect();
             if (cutoutRect.left > -1) {
                 cameraCutout.updateFromAreaRect(cutoutRect);
             }
@@ -540,7 +560,12 @@ public class NotificationAnimation implements Settings.OnSettingsChangedListener
 
                 // Get going
                 spritePlayer.setSpeed(getSpeedFactor());
-                spritePlayer.setOnSpriteSheetNeededListener((w, h, m) -> SpriteSheet.fromLottieComposition(lottieComposition, w, h, m));
+                spritePlayer.setPreTinted(values.preTintedSheets);
+                for (SpritePlayer.Mode rendererMode : SpritePlayer.RENDERER_MODES) {
+                    spritePlayer.setHardwareRenderer(rendererMode, values.getHardwareRenderer(rendererMode));
+                }
+                spritePlayer.setOnRendererCalibratedListener(settings::setHardwareRenderer);
+                spritePlayer.setOnSpriteSheetNeededListener(this::loadSpriteSheet);
                 if (!spritePlayer.isAnimating() && play) {
                     spritePlayer.playAnimation();
                 }
@@ -552,7 +577,27 @@ public class NotificationAnimation implements Settings.OnSettingsChangedListener
         }
     }
 
-    public void play(int[] colors, Drawable[] icons, boolean once, boolean immediately) {
+    private SpriteSheet loadSpriteSheet(int width, int height, SpritePlayer.Mode mode, SpriteSheet.OnFrameAvailableListener onFrameAvailableListener) {
+        SpriteSheet.Source source = spriteSheetSource;
+        String hash = lottieCompositionHash;
+        SpriteSheetCache cache = SpriteSheetCache.getInstance(spritePlayer.getContext());
+        SpriteSheetPool pool = SpriteSheetPool.getInstance();
+        String key = SpriteSheetPool.key(hash, width, height, mode);
+
+        SpriteSheet spriteSheet = pool.acquire(key);
+        if (spriteSheet != null) return spriteSheet;
+
+        spriteSheet = cache.load(hash, width, height, mode);
+        if (spriteSheet == null) {
+            spriteSheet = SpriteSheet.fromSource(source, width, height, mode, onFrameAvailableListener);
+            if (spriteSheet != null) {
+                cache.store(hash, width, height, mode, spriteSheet);
+            }
+        }
+        return pool.put(key, spriteSheet);
+    }
+
+    public void play(int[] colors, Bitmap[] icons, boolean once, boolean immediately) {
         synchronized (getSynchronizer()) {
             if ((colors == null) || (colors.length == 0)) {
                 stop(true);
@@ -600,27 +645,27 @@ public class NotificationAnimation implements Settings.OnSettingsChangedListener
     }
 
     public float getDpAddScaleBase() {
-        return settings.getDpAddScaleBase(spec.dpAddScaleBase);
+        return settings.getSnapshot().getDpAddScaleBase(spec.dpAddScaleBase);
     }
 
     public float getDpAddScaleHorizontal() {
-        return settings.getDpAddScaleHorizontal(spec.dpAddScaleHorizontal);
+        return settings.getSnapshot().getDpAddScaleHorizontal(spec.dpAddScaleHorizontal);
     }
 
     public float getDpShiftVertical() {
-        return settings.getDpShiftVertical(spec.dpShiftVertical);
+        return settings.getSnapshot().getDpShiftVertical(spec.dpShiftVertical);
     }
 
     public float getDpShiftHorizontal() {
-        return settings.getDpShiftHorizontal(spec.dpShiftHorizontal);
+        return settings.getSnapshot().getDpShiftHorizontal(spec.dpShiftHorizontal);
     }
 
     public float getDpAddThickness() {
-        return settings.getDpAddThickness(0);
+        return settings.getSnapshot().getDpAddThickness(0);
     }
 
     public float getSpeedFactor() {
-        return settings.getSpeedFactor();
+        return settings.getSnapshot().speedFactor;
     }
 
     public boolean getDoze() {
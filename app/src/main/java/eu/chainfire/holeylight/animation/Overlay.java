@@ -28,10 +28,13 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.database.ContentObserver;
+import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.graphics.PixelFormat;
 import android.graphics.Rect;
-import android.graphics.drawable.Drawable;
+import android.hardware.display.DisplayManager;
+import android.net.Uri;
 import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
@@ -52,12 +55,34 @@ import eu.chainfire.holeylight.service.AccessibilityService;
 import eu.chainfire.holeylight.service.NotificationTracker;
 import eu.chainfire.holeylight.ui.DetectCutoutActivity;
 
+import static android.content.Context.DISPLAY_SERVICE;
 import static android.content.Context.KEYGUARD_SERVICE;
 import static android.content.Context.POWER_SERVICE;
 
 @SuppressWarnings({"WeakerAccess", "unused", "FieldCanBeLocal"})
-public class Overlay {
+public class Overlay implements Settings.OnSettingsChangedListener {
     public static volatile Boolean test_lastVisible = null;
+    public static volatile long test_evaluateCount = 0;
+    public static volatile long test_pollCount = 0;
+
+    private static final long DOZE_REDRAW_INTERVAL = 100;
+
+    // Safety net only, inputs are pushed to us. Backs off while nothing changes.
+    private static final long POLL_INTERVAL_MIN = 30 * 1000;
+    private static final long POLL_INTERVAL_MAX = 15 * 60 * 1000;
+
+    /*
+        What evaluate() decides on. Each is cached and only refreshed when the event that
+        changes it arrives; evaluate() runs only if the refreshed value actually differs.
+
+        DISPLAY:  DisplayListener, SCREEN_ON/OFF, accessibility events
+        CHARGING: POWER_CONNECTED/DISCONNECTED
+        KEYGUARD: SCREEN_ON/OFF, USER_PRESENT, display changes
+        SCHEDULE: AOD schedule alarm
+        SETTINGS: settings listener
+        COLORS:   show() and hide()
+     */
+    public enum Input { DISPLAY, CHARGING, KEYGUARD, SCHEDULE, SETTINGS, COLORS }
 
     private static Overlay instance;
     public static Overlay getInstance() {
@@ -127,32 +152,68 @@ public class Overlay {
                     }
                     break;
                 case Intent.ACTION_SCREEN_ON:
-                    int linger = settings.getOverlayLinger();
+                    int linger = settings.getSnapshot().overlayLinger;
                     if (linger == 0) {
                         removeTSP.run();
                     } else if (handler != null) {
                         // just in case evaluate doesn't run
                         handler.postDelayed(removeTSP, linger + 250);
                     }
-                    evaluate(true);
+                    refreshInput(Input.KEYGUARD);
+                    refreshInput(Input.DISPLAY);
+                    evaluate(false);
                     break;
                 case Intent.ACTION_USER_PRESENT:
+                    onInputChanged(Input.KEYGUARD);
+                    break;
                 case Intent.ACTION_POWER_CONNECTED:
                 case Intent.ACTION_POWER_DISCONNECTED:
-                    evaluate(true);
+                    onInputChanged(Input.CHARGING);
                     break;
                 case Intent.ACTION_SCREEN_OFF:
-                    if (settings.isHideAOD()) {
+                    if (settings.getSnapshot().hideAOD) {
                         // without AOD we might immediately go to sleep, give us some time to setup
                         pokeWakeLocks(10000);
                     }
-                    evaluate(true);
+                    refreshInput(Input.KEYGUARD);
+                    refreshInput(Input.DISPLAY);
+                    refreshInput(Input.SCHEDULE);
+                    evaluate(false);
                     break;
             }
         }
     };
 
+    private final DisplayManager.DisplayListener displayListener = new DisplayManager.DisplayListener() {
+        @Override
+        public void onDisplayAdded(int displayId) {
+        }
+
+        @Override
+        public void onDisplayRemoved(int displayId) {
+        }
+
+        @Override
+        public void onDisplayChanged(int displayId) {
+            if (displayId == android.view.Display.DEFAULT_DISPLAY) {
+                onInputChanged(Input.DISPLAY);
+            }
+        }
+    };
+
+    // the AOD schedule is a system setting, edits move the boundaries we need alarms for
+    private final ContentObserver scheduleObserver = new ContentObserver(new Handler(Looper.getMainLooper())) {
+        @Override public void onChange(boolean selfChange, Uri uri) { onChange(selfChange); }
+        @Override
+        public void onChange(boolean selfChange) {
+            if (terminated) return;
+            AODControl.setAODAlarm(spritePlayer.getContext());
+            onInputChanged(Input.SCHEDULE);
+        }
+    };
+
     private final WindowManager windowManager;
+    private final DisplayManager displayManager;
     private final KeyguardManager keyguardManager;
     private final PowerManager.WakeLock cpuWakeLock;
     private final PowerManager.WakeLock drawWakeLock;
@@ -164,7 +225,7 @@ public class Overlay {
     private NotificationAnimation animation;
 
     private int[] colors = new int[0];
-    private Drawable[] icons = new Drawable[0];
+    private Bitmap[] icons = new Bitmap[0];
     private boolean wanted = false;
     private boolean kill = false;
     private boolean forceRefresh = false;
@@ -181,8 +242,15 @@ public class Overlay {
     private long lastVisibleTime;
     private volatile boolean terminated = false;
 
+    private Display.State inputDisplay = Display.State.OTHER;
+    private boolean inputCharging = false;
+    private boolean inputKeyguardLocked = false;
+    private boolean inputInAODSchedule = true;
+    private long pollInterval = POLL_INTERVAL_MIN;
+
     private Overlay(Context context) {
         windowManager = (WindowManager)context.getSystemService(Activity.WINDOW_SERVICE);
+        displayManager = (DisplayManager)context.getSystemService(DISPLAY_SERVICE);
         keyguardManager = (KeyguardManager)context.getSystemService(KEYGUARD_SERVICE);
         cpuWakeLock = ((PowerManager)context.getSystemService(POWER_SERVICE)).newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, BuildConfig.APPLICATION_ID + ":cpu");
         drawWakeLock = ((PowerManager)context.getSystemService(POWER_SERVICE)).newWakeLock(0x00000080 | 0x40000000, BuildConfig.APPLICATION_ID + ":draw"); /* DRAW_WAKE_LOCK | UNIMPORTANT_FOR_LOGGING */
@@ -217,8 +285,6 @@ public class Overlay {
 
             initParams();
             animation = new NotificationAnimation(context, spritePlayer, resolutionTracker.getDensityMultiplier(), new NotificationAnimation.OnNotificationAnimationListener() {
-                private int skips = 0;
-
                 @Override
                 public void onDimensionsApplied(SpritePlayer view) {
                     if (added) {
@@ -234,32 +300,23 @@ public class Overlay {
 
                 @Override
                 public boolean onAnimationFrameStart(SpritePlayer view, boolean draw) {
-                    if (draw) skips = 0;
-                    if (Display.isDoze(spritePlayer.getContext())) {
-                        if (!draw) {
-                            // If we were to do slow drawing, we would have to poke
-                            // WindowManager, by adjusting the x/y/width/height of the root view
-                            // and using WindowManager::updateViewLayout.
-                            // Otherwise, when we're in *doze* and on *battery* power, our overlay
-                            // would disappear (as it's not actually part of the screen maintained
-                            // content) unless the screen is being touched (aod-on-tap).
-                            // It would be better to poke Android's internal draw wakelock
-                            // instead, but there doesn't appear to be a way to reach this code
-                            // from userspace. pokeDrawLock() calls that should exist according
-                            // to AOSP do not appear to be present on Samsung.
-                            // Using updateViewLayout often enough that it would keep our
-                            // overlay alive however, triggers about 50% (single-core) CPU usage
-                            // in system_server. As such it is cheaper to waste some cycles and
-                            // redraw our overlay regularly. From experimentation, 6 works here.
-                            skips++;
-                            if (skips == 6) {
-                                skips = 0;
-                                return true;
-                            }
-
-                            return false;
-                        }
-                    }
+                    // If we were to do slow drawing, we would have to poke
+                    // WindowManager, by adjusting the x/y/width/height of the root view
+                    // and using WindowManager::updateViewLayout.
+                    // Otherwise, when we're in *doze* and on *battery* power, our overlay
+                    // would disappear (as it's not actually part of the screen maintained
+                    // content) unless the screen is being touched (aod-on-tap).
+                    // It would be better to poke Android's internal draw wakelock
+                    // instead, but there doesn't appear to be a way to reach this code
+                    // from userspace. pokeDrawLock() calls that should exist according
+                    // to AOSP do not appear to be present on Samsung.
+                    // Using updateViewLayout often enough that it would keep our
+                    // overlay alive however, triggers about 50% (single-core) CPU usage
+                    // in system_server. As such it is cheaper to waste some cycles and
+                    // redraw our overlay regularly. From experimentation, every 6th frame
+                    // (~100ms) works here, SpritePlayer does this for us based on
+                    // setRedrawInterval().
+                    view.setRedrawInterval(Display.isDoze(spritePlayer.getContext()) ? DOZE_REDRAW_INTERVAL : 0);
                     return draw;
                 }
 
@@ -290,6 +347,10 @@ public class Overlay {
             intentFilter.setPriority(999);
 
             spritePlayer.getContext().getApplicationContext().registerReceiver(broadcastReceiver, intentFilter);
+            displayManager.registerDisplayListener(displayListener, handler);
+            settings.registerOnSettingsChangedListener(this, Settings.Group.MODES, Settings.Group.AOD);
+            spritePlayer.getContext().getContentResolver().registerContentObserver(android.provider.Settings.System.getUriFor("aod_mode_start_time"), false, scheduleObserver);
+            spritePlayer.getContext().getContentResolver().registerContentObserver(android.provider.Settings.System.getUriFor("aod_mode_end_time"), false, scheduleObserver);
         }
         evaluate(true);
     }
@@ -299,12 +360,76 @@ public class Overlay {
         if (spritePlayer != null) {
             try {
                 spritePlayer.getContext().getApplicationContext().unregisterReceiver(broadcastReceiver);
+                spritePlayer.getContext().getContentResolver().unregisterContentObserver(scheduleObserver);
             } catch (Exception ignored) {
             }
         }
+        displayManager.unregisterDisplayListener(displayListener);
+        settings.unregisterOnSettingsChangedListener(this);
         super.finalize();
     }
 
+    @Override
+    public void onSettingsChanged() {
+        onInputChanged(Input.SETTINGS);
+    }
+
+    /**
+     * Refreshes the cached input, returns true if it changed
+     */
+    private boolean refreshInput(Input input) {
+        if (spritePlayer == null) return false;
+        Context context = spritePlayer.getContext();
+        switch (input) {
+            case DISPLAY: {
+                Display.State state = Display.get(context);
+                if (state == inputDisplay) return false;
+                log("Input display: %s --> %s", inputDisplay, state);
+                inputDisplay = state;
+                return true;
+            }
+            case CHARGING: {
+                boolean charging = Battery.isCharging(context);
+                if (charging == inputCharging) return false;
+                inputCharging = charging;
+                return true;
+            }
+            case KEYGUARD: {
+                boolean locked = keyguardManager.isKeyguardLocked();
+                if (locked == inputKeyguardLocked) return false;
+                inputKeyguardLocked = locked;
+                return true;
+            }
+            case SCHEDULE: {
+                boolean inSchedule = AODControl.inAODSchedule(context, true);
+                if (inSchedule == inputInAODSchedule) return false;
+                inputInAODSchedule = inSchedule;
+                return true;
+            }
+            default:
+                // SETTINGS and COLORS aren't cached, a notification means a change
+                return true;
+        }
+    }
+
+    private boolean refreshInputs() {
+        boolean changed = false;
+        for (Input input : new Input[] { Input.DISPLAY, Input.CHARGING, Input.KEYGUARD, Input.SCHEDULE }) {
+            changed |= refreshInput(input);
+        }
+        return changed;
+    }
+
+    /**
+     * Push an input change, only re-evaluates if the input actually changed. Main thread only.
+     */
+    public void onInputChanged(Input input) {
+        if (terminated) return;
+        boolean changed = refreshInput(input);
+        if (input == Input.DISPLAY) changed |= refreshInput(Input.KEYGUARD);
+        if (changed) evaluate(false);
+    }
+
     @SuppressLint("RtlHardcoded")
     private void initParams() {
         if (terminated) return;
@@ -397,57 +522,76 @@ public class Overlay {
         return false;
     }
 
-    private final Runnable evaluateLoop = () -> evaluate(false);
+    private final Runnable evaluateRetry = () -> evaluate(true);
+
+    private final Runnable poll = () -> {
+        test_pollCount++;
+        if (refreshInputs()) {
+            log("Poll: inputs changed");
+            pollInterval = POLL_INTERVAL_MIN;
+            evaluate(false);
+        } else {
+            pollInterval = Math.min(pollInterval * 2, POLL_INTERVAL_MAX);
+            handler.postDelayed(this.poll, pollInterval);
+        }
+    };
 
     private boolean evaluateDelayedPosted = false;
     private final Runnable evaluateDelayed = () -> { evaluate(true, true); evaluateDelayedPosted = false; };
 
     private final Runnable removeTSP = () -> animation.updateTSPRect(new Rect(0, 0, 0, 0), null, 0);
 
-    public void evaluate(boolean refreshAll) {
-        evaluate(refreshAll, false);
+    /**
+     * @param refreshInputs Re-read all inputs rather than relying on the pushed state
+     */
+    public void evaluate(boolean refreshInputs) {
+        evaluate(refreshInputs, false);
     }
 
-    public void evaluate(boolean refreshAll, boolean isDelayed) {
+    public void evaluate(boolean refreshInputs, boolean isDelayed) {
         if (terminated) return;
 
         if (spritePlayer == null) {
-            if (wanted) handler.postDelayed(evaluateLoop, 500);
+            if (wanted) handler.postDelayed(evaluateRetry, 500);
             return;
         }
 
+        test_evaluateCount++;
+        if (refreshInputs) refreshInputs();
+
         if (colors.length == 0) {
             wanted = false;
         }
 
         Context context = spritePlayer.getContext();
+        Settings.Snapshot values = settings.getSnapshot();
 
-        boolean on = Display.isOn(context, false);
-        boolean doze = Display.isDoze(context);
+        boolean on = (inputDisplay == Display.State.ON) || (inputDisplay == Display.State.OTHER);
+        boolean doze = inputDisplay == Display.State.DOZE;
         boolean visible = on || doze;
-        boolean inAODSchedule = AODControl.inAODSchedule(context, false);
+        boolean inAODSchedule = inputInAODSchedule;
         boolean haveColors = colors.length > 0;
-        boolean allowHideAOD = settings.isEnabledWhileScreenOff();
+        boolean allowHideAOD = values.enabledWhileScreenOff;
         if (visible) {
             lastVisibleTime = SystemClock.elapsedRealtime();
         }
-        if (!visible && allowHideAOD && settings.isHideAOD() && inAODSchedule) {
+        if (!visible && allowHideAOD && values.hideAOD && inAODSchedule) {
             // we will be visible soon
             visible = true;
             doze = true;
         }
-        boolean lockscreen = on && keyguardManager.isKeyguardLocked();
-        boolean charging = Battery.isCharging(context);
+        boolean lockscreen = on && inputKeyguardLocked;
+        boolean charging = inputCharging;
 
-        int mode = settings.getMode(charging, !doze && (!spritePlayer.isTSPMode(lastMode) || on));
-        int modeOff = settings.getMode(charging, false);
-        SpritePlayer.Mode renderMode = settings.getAnimationMode(mode);
-        SpritePlayer.Mode renderModeOff = settings.getAnimationMode(modeOff);
+        int mode = values.getMode(charging, !doze && (!spritePlayer.isTSPMode(lastMode) || on));
+        int modeOff = values.getMode(charging, false);
+        SpritePlayer.Mode renderMode = values.getAnimationMode(mode);
+        SpritePlayer.Mode renderModeOff = values.getAnimationMode(modeOff);
 
-        boolean isHideAOD = allowHideAOD && (settings.isHideAOD() || spritePlayer.isTSPMode(renderMode));
+        boolean isHideAOD = allowHideAOD && (values.hideAOD || spritePlayer.isTSPMode(renderMode));
         boolean isHideAODAndDoze = isHideAOD && doze;
         boolean isHideAODAndDozeOrOff = isHideAOD && (doze || !on);
-        boolean isHideAODIfOff = allowHideAOD && (settings.isHideAOD() || spritePlayer.isTSPMode(renderModeOff));
+        boolean isHideAODIfOff = allowHideAOD && (values.hideAOD || spritePlayer.isTSPMode(renderModeOff));
 
         boolean activeHide = (!haveColors || !inAODSchedule) && isHideAODAndDozeOrOff;
         if (activeHide) renderMode = SpritePlayer.Mode.TSP_HIDE;
@@ -455,14 +599,14 @@ public class Overlay {
         boolean wantAOD = (haveColors || !isHideAODIfOff) && inAODSchedule;
         if (wantAOD != lastWantAOD) forceRefresh = true;
 
-        int linger = settings.getOverlayLinger();
+        int linger = values.overlayLinger;
         if (linger > 0) {
             handler.removeCallbacks(removeTSP);
-            if (!isDelayed && (spritePlayer.isTSPMode(lastMode) || (lastDoze && allowHideAOD && settings.isHideAOD())) && !(spritePlayer.isTSPMode(renderMode) || doze)) {
+            if (!isDelayed && (spritePlayer.isTSPMode(lastMode) || (lastDoze && allowHideAOD && values.hideAOD)) && !(spritePlayer.isTSPMode(renderMode) || doze)) {
                 log("Linger: %d ms", linger);
-                animation.setShowAODClock(false, settings.isShowAODClock());
+                animation.setShowAODClock(false, values.showAODClock);
                 animation.setHideAOD(true, true);
-                handler.removeCallbacks(evaluateLoop);
+                handler.removeCallbacks(poll);
                 if (!evaluateDelayedPosted) {
                     handler.postDelayed(evaluateDelayed, linger);
                     evaluateDelayedPosted = true;
@@ -471,25 +615,26 @@ public class Overlay {
             }
         }
 
-        boolean lockscreenOk = !on || !lockscreen || settings.isEnabledOnLockscreen();
-        boolean wantedEffective = (wanted || activeHide) && settings.isEnabledWhile(mode) && lockscreenOk;
+        boolean lockscreenOk = !on || !lockscreen || values.enabledOnLockscreen;
+        boolean wantedEffective = (wanted || activeHide) && values.isEnabledWhile(mode) && lockscreenOk;
         boolean hideAODEffective = activeHide || isHideAODAndDoze;
 
         if (forceRefresh) log("Force refresh");
 
         if (visible && wantedEffective && (haveColors || activeHide)) {
-            boolean blackFill = !doze && settings.isBlackFill();
+            boolean blackFill = !doze && values.blackFill;
             if (!lastState || colorsChanged() || renderMode != lastMode || blackFill != lastBlackFill || doze != lastDoze || hideAODEffective != lastHideAOD || forceRefresh) {
-                if (!wantAOD && AODControl.isAODEnabled(context) && settings.isAODHelperControl()) {
+                if (!wantAOD && AODControl.isAODEnabled(context) && values.aodHelperControl) {
                     pokeWakeLocks(250); // this is why we check ^^^ explicitly
                     AODControl.setAODEnabled(spritePlayer.getContext(), wantAOD, null);
                 }
                 animation.setMode(renderMode, blackFill);
                 createOverlay();
-                animation.setShowAODClock(settings.isShowAODClock(), settings.isShowAODClock());
-                animation.setHideAOD(hideAODEffective, settings.isHideAODFully());
+                animation.setShowAODClock(values.showAODClock, values.showAODClock);
+                animation.setHideAOD(hideAODEffective, values.hideAODFully);
                 animation.setDoze(doze);
-                animation.play(activeHide ? new int[] { Color.BLACK } : colors, settings.isUnholeyLightIcons() ? icons : new Drawable[0], false, (renderMode != lastMode));
+                spritePlayer.setRedrawInterval(doze ? DOZE_REDRAW_INTERVAL : 0);
+                animation.play(activeHide ? new int[] { Color.BLACK } : colors, values.unholeyLightIcons ? icons : new Bitmap[0], false, (renderMode != lastMode));
                 lastColors = colors;
                 lastState = true;
                 lastMode = renderMode;
@@ -498,9 +643,11 @@ public class Overlay {
                 lastHideAOD = hideAODEffective;
                 lastWantAOD = wantAOD;
                 if (wantAOD) AODControl.setAODEnabled(spritePlayer.getContext(), wantAOD, null);
+                pollInterval = POLL_INTERVAL_MIN;
             }
         } else {
             if (lastState || forceRefresh) {
+                pollInterval = POLL_INTERVAL_MIN;
                 final boolean fVisible = visible;
                 final boolean fDoze = doze;
                 final boolean fWantAOD = wantAOD;
@@ -508,7 +655,7 @@ public class Overlay {
                     if (lastState) {
                         boolean remove = false;
                         if (animation.isPlaying()) {
-                            boolean immediately = !fVisible || kill || isDelayed || spritePlayer.isTSPMode(lastMode) || lastHideAOD || settings.isAODHelperControl();
+                            boolean immediately = !fVisible || kill || isDelayed || spritePlayer.isTSPMode(lastMode) || lastHideAOD || values.aodHelperControl;
                             animation.stop(immediately);
                             if (immediately) remove = true;
                         } else {
@@ -527,7 +674,7 @@ public class Overlay {
                     }
                 };
                 if (doze && !wantAOD) {
-                    animation.setHideAOD(true, settings.isHideAODFully());
+                    animation.setHideAOD(true, values.hideAODFully);
                     lastHideAOD = true;
                     AODControl.setAODEnabled(spritePlayer.getContext(), wantAOD, null);
                     pokeWakeLocks(500);
@@ -539,31 +686,29 @@ public class Overlay {
             }
         }
 
-        handler.removeCallbacks(evaluateLoop);
+        handler.removeCallbacks(poll);
         if (wantedEffective && ((doze && AODControl.isAODEnabled(context)) || on)) {
-            handler.postDelayed(evaluateLoop, (spritePlayer.isTSPMode(renderMode) || colors.length == 0) ? 5000 : 500);
+            handler.postDelayed(poll, pollInterval);
         }
 
         forceRefresh = false;
     }
 
-    public void show(int[] colors, Drawable[] icons, boolean forceRefresh) {
+    public void show(int[] colors, Bitmap[] icons, boolean forceRefresh) {
         if (terminated) return;
-        handler.removeCallbacks(evaluateLoop);
         this.colors = colors;
         this.icons = icons;
         wanted = true;
         kill = false;
         this.forceRefresh = forceRefresh;
-        evaluate(true);
+        evaluate(false);
     }
 
     public void hide(boolean immediately) {
         if (terminated) return;
-        handler.removeCallbacks(evaluateLoop);
         wanted = false;
         kill = immediately;
-        evaluate(true);
+        evaluate(false);
     }
 
     public void updateTSPRect(Rect rect, Rect clockRect, int overlayBottom) {
@@ -582,10 +727,18 @@ public class Overlay {
                 instance = null;
                 terminated = true;
             }
+            handler.removeCallbacks(poll);
+            displayManager.unregisterDisplayListener(displayListener);
+            settings.unregisterOnSettingsChangedListener(this);
             if (animation.isPlaying()) animation.stop(true);
             removeOverlay();
+            spritePlayer.releaseSpriteSheets();
+            SpriteSheetPool.getInstance().trimIdle();
+            log("Sprite sheet pool %s", SpriteSheetPool.getInstance().getOccupancy());
+            log("Icon bitmap cache %s", IconBitmapCache.getInstance().getOccupancy());
             animation = null;
             spritePlayer.getContext().getApplicationContext().unregisterReceiver(broadcastReceiver);
+            spritePlayer.getContext().getContentResolver().unregisterContentObserver(scheduleObserver);
             spritePlayer = null;
         }
     }
@@ -20,7 +20,6 @@ package eu.chainfire.holeylight.animation;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BlendMode;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Matrix;
@@ -33,19 +32,27 @@ import android.graphics.PorterDuffXfermode;
 import android.graphics.Rect;
 import android.graphics.Shader;
 import android.graphics.SweepGradient;
-import android.graphics.drawable.Drawable;
+import android.media.Image;
+import android.media.ImageReader;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.SystemClock;
 import android.util.TypedValue;
 import android.view.Choreographer;
+import android.view.Surface;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.RelativeLayout;
 
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import androidx.annotation.NonNull;
 import eu.chainfire.holeylight.misc.Settings;
 import eu.chainfire.holeylight.misc.Slog;
@@ -58,9 +65,15 @@ public class SpritePlayer extends RelativeLayout {
 
     private final int TSP_FAST_DRAW_TIME = 10000;
     private final int TSP_FIRST_DRAW_DELAY = 2000;
+    private static final int LOADER_WORKERS = 3;
+    private static final Mode[] LOADER_MODES = new Mode[] { Mode.SWIRL, Mode.BLINK, Mode.SINGLE };
+    public static final Mode[] RENDERER_MODES = new Mode[] { Mode.SWIRL, Mode.BLINK, Mode.SINGLE, Mode.TSP };
+    private static final int CALIBRATION_SAMPLES = 16;
+    private static final long CALIBRATION_INTERVAL = 50;
+    private static final long CALIBRATION_FRAME_TIMEOUT = 250;
 
     public interface OnSpriteSheetNeededListener {
-        SpriteSheet onSpriteSheetNeeded(int width, int height, Mode mode);
+        SpriteSheet onSpriteSheetNeeded(int width, int height, Mode mode, SpriteSheet.OnFrameAvailableListener onFrameAvailableListener);
     }
 
     public interface OnAnimationListener {
@@ -69,24 +82,36 @@ public class SpritePlayer extends RelativeLayout {
         boolean onAnimationComplete();
     }
 
+    public interface OnRendererCalibratedListener {
+        void onRendererCalibrated(Mode mode, boolean hardware);
+    }
+
     private final Object sync = new Object();
 
     private final HandlerThread handlerThreadRender;
     private final HandlerThread handlerThreadLoader;
     private final Handler handlerRender;
     private final Handler handlerLoader;
+    private final ExecutorService loaderExecutor;
     private final Handler handlerMain;
     private volatile Choreographer choreographer;
 
-    private final SurfaceView surfaceView;
+    // A Surface that has been drawn to with a hardware canvas can't go back to software
+    // rendering, so the SurfaceView is replaced when switching renderers
+    private volatile SurfaceView surfaceView;
+    private volatile boolean surfaceHardware = false;
+    private final Boolean[] hardwareRenderer = new Boolean[Mode.values().length];
+    private RendererCalibration rendererCalibration = null;
 
     private volatile OnSpriteSheetNeededListener onSpriteSheetNeededListener = null;
     private volatile OnAnimationListener onAnimationListener = null;
+    private volatile OnRendererCalibratedListener onRendererCalibratedListener = null;
 
     private final Paint paint = new Paint();
     private final Paint paintTsp = new Paint();
     private final Paint paintTspTransparent = new Paint();
     private final Paint paintTspTransparentDebug = new Paint();
+    private final Paint paintTspIcon = new Paint();
     private final float dpToPx;
 
     private volatile int frame = -1;
@@ -102,13 +127,30 @@ public class SpritePlayer extends RelativeLayout {
     private volatile boolean forceSpriteSheetReload = false;
     private final Rect dest = new Rect();
     private final Rect destDouble = new Rect();
+
+    // Render state reused between frames, renderFrame() should not allocate in steady state
+    private final PorterDuffXfermode xfermodeClear = new PorterDuffXfermode(PorterDuff.Mode.CLEAR);
+    private final PorterDuffXfermode xfermodeSrcAtop = new PorterDuffXfermode(PorterDuff.Mode.SRC_ATOP);
+    private final PorterDuffXfermode xfermodeMultiply = new PorterDuffXfermode(PorterDuff.Mode.MULTIPLY);
+    private final Rect blackSrc = new Rect();
+    private final Matrix tspMatrix = new Matrix();
+    private PorterDuffColorFilter singleColorFilter = null;
+    private int singleColorFilterColor = 0;
+    private Shader tspSweep = null;
+    private int[] tspSweepColors = null;
+    private float tspSweepCX = -1f;
+    private float tspSweepCY = -1f;
+    private final TintedSpriteSheets tintedSpriteSheets;
+    private long nextFrameNanos = 0;
+    private volatile long redrawIntervalNanos = 0;
+    private volatile boolean preTinted = true;
     private volatile boolean surfaceInvalidated = true;
     private volatile boolean draw = false;
     private volatile boolean wanted = false;
     private volatile int width = -1;
     private volatile int height = -1;
     private volatile int[] colors = null;
-    private volatile Drawable[] icons = null;
+    private volatile Bitmap[] icons = null;
     private volatile float speed = 1.0f;
     private volatile Mode drawMode = Mode.SWIRL;
     private volatile boolean drawBackground = false;
@@ -131,6 +173,12 @@ public class SpritePlayer extends RelativeLayout {
         handlerThreadLoader = new HandlerThread("SpritePlayer#Loader");
         handlerThreadLoader.start();
         handlerLoader = new Handler(handlerThreadLoader.getLooper());
+        tintedSpriteSheets = new TintedSpriteSheets(sync, handlerLoader);
+        final AtomicInteger loaderWorkerId = new AtomicInteger(0);
+        loaderExecutor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(LOADER_WORKERS, Runtime.getRuntime().availableProcessors() - 1)),
+                r -> new Thread(r, "SpritePlayer#Loader#" + loaderWorkerId.incrementAndGet())
+        );
         handlerMain = new Handler(Looper.getMainLooper());
 
         paint.setAntiAlias(false);
@@ -142,9 +190,14 @@ public class SpritePlayer extends RelativeLayout {
         paintTsp.setFilterBitmap(false);
 
         paintTspTransparent.setColor(Color.TRANSPARENT);
-        paintTspTransparent.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.CLEAR));
+        paintTspTransparent.setXfermode(xfermodeClear);
         paintTspTransparentDebug.setColor(0x4000FF00);
 
+        // icons are rasterized at the exact size they're drawn at, see IconBitmapCache
+        paintTspIcon.setAntiAlias(false);
+        paintTspIcon.setDither(false);
+        paintTspIcon.setFilterBitmap(false);
+
         handlerRender.post(() -> {
             Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
             choreographer = Choreographer.getInstance();
@@ -152,12 +205,7 @@ public class SpritePlayer extends RelativeLayout {
         
         RelativeLayout.LayoutParams params = new RelativeLayout.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT);
 
-        surfaceView = new SurfaceView(context);
-        surfaceView.setZOrderOnTop(true);
-        surfaceView.getHolder().setFormat(PixelFormat.RGBA_8888);
-        surfaceView.getHolder().addCallback(surfaceCallback);
-        surfaceView.setVisibility(View.VISIBLE);
-        surfaceView.setLayoutParams(new RelativeLayout.LayoutParams(params));
+        surfaceView = createSurfaceView(new RelativeLayout.LayoutParams(params));
         addView(surfaceView);
 
         while (choreographer == null) {
@@ -176,6 +224,7 @@ public class SpritePlayer extends RelativeLayout {
     protected void finalize() throws Throwable {
         handlerThreadRender.quitSafely();
         handlerThreadLoader.quitSafely();
+        loaderExecutor.shutdown();
         super.finalize();
     }
 
@@ -185,6 +234,41 @@ public class SpritePlayer extends RelativeLayout {
         evaluate();
     }
 
+    private SurfaceView createSurfaceView(RelativeLayout.LayoutParams params) {
+        SurfaceView surfaceView = new SurfaceView(getContext());
+        surfaceView.setZOrderOnTop(true);
+        surfaceView.getHolder().setFormat(PixelFormat.RGBA_8888);
+        surfaceView.getHolder().addCallback(surfaceCallback);
+        surfaceView.setVisibility(View.VISIBLE);
+        surfaceView.setLayoutParams(params);
+        return surfaceView;
+    }
+
+    private void replaceSurfaceView(boolean hardware) {
+        // main thread only
+        synchronized (sync) {
+            if (hardware == surfaceHardware) return;
+            Slog.d("SpritePlayer", "Renderer %s [%s]", hardware ? "hardware" : "software", drawMode.toString());
+            SurfaceView old = surfaceView;
+            surfaceReady = false;
+            cancelNextFrame();
+            surfaceView = createSurfaceView((RelativeLayout.LayoutParams)old.getLayoutParams());
+            surfaceHardware = hardware;
+            removeView(old);
+            addView(surfaceView);
+            if (draw) callNextFrame(true);
+        }
+    }
+
+    private Canvas lockCanvas() {
+        SurfaceHolder holder = surfaceView.getHolder();
+        return surfaceHardware ? holder.lockHardwareCanvas() : holder.lockCanvas();
+    }
+
+    private void unlockCanvasAndPost(Canvas canvas) {
+        surfaceView.getHolder().unlockCanvasAndPost(canvas);
+    }
+
     private final SurfaceHolder.Callback2 surfaceCallback = new SurfaceHolder.Callback2() {
         @Override
         public void surfaceRedrawNeeded(SurfaceHolder holder) {
@@ -193,6 +277,7 @@ public class SpritePlayer extends RelativeLayout {
 
         @Override
         public void surfaceCreated(SurfaceHolder holder) {
+            if (holder != surfaceView.getHolder()) return;
             surfaceInvalidated = true;
             surfaceReady = true;
         }
@@ -200,6 +285,7 @@ public class SpritePlayer extends RelativeLayout {
         @Override
         public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
             synchronized (sync) {
+                if (holder != surfaceView.getHolder()) return;
                 SpritePlayer.this.width = width;
                 SpritePlayer.this.height = height;
                 callOnSpriteSheetNeeded(width, height);
@@ -208,6 +294,7 @@ public class SpritePlayer extends RelativeLayout {
 
         @Override
         public void surfaceDestroyed(SurfaceHolder holder) {
+            if (holder != surfaceView.getHolder()) return;
             surfaceReady = false;
             cancelNextFrame();
         }
@@ -278,25 +365,30 @@ public class SpritePlayer extends RelativeLayout {
 
                 float anglePerColor = 360f / colors.length;
 
-                int[] sweepColors;
-                if (colors.length == 1) {
-                    sweepColors = new int[] { colors[0], colors[0] };
-                } else {
-                    sweepColors = new int[colors.length*7 + 1];
-                    for (int i = 0; i < 4; i++) sweepColors[i] = colors[0];
-                    for (int i = 1; i < colors.length; i++) {
-                        for (int j = 4 + (i - 1)*7; j < 4 + i*7; j++) {
-                            sweepColors[j] = colors[i];
+                // sweep only depends on colors and center, rotation is applied through the matrix
+                if ((tspSweep == null) || (tspSweepColors != colors) || (tspSweepCX != cx) || (tspSweepCY != cy)) {
+                    int[] sweepColors;
+                    if (colors.length == 1) {
+                        sweepColors = new int[] { colors[0], colors[0] };
+                    } else {
+                        sweepColors = new int[colors.length*7 + 1];
+                        for (int i = 0; i < 4; i++) sweepColors[i] = colors[0];
+                        for (int i = 1; i < colors.length; i++) {
+                            for (int j = 4 + (i - 1)*7; j < 4 + i*7; j++) {
+                                sweepColors[j] = colors[i];
+                            }
                         }
+                        for (int i = sweepColors.length - 4; i < sweepColors.length; i++) sweepColors[i] = colors[0];
                     }
-                    for (int i = sweepColors.length - 4; i < sweepColors.length; i++) sweepColors[i] = colors[0];
+                    tspSweep = new SweepGradient(cx, cy, sweepColors, null);
+                    tspSweepColors = colors;
+                    tspSweepCX = cx;
+                    tspSweepCY = cy;
                 }
 
-                Shader sweep = new SweepGradient(cx, cy, sweepColors, null);
-                Matrix matrix = new Matrix();
-                matrix.preRotate(startAngle + 270, cx, cy);
-                sweep.setLocalMatrix(matrix);
-                paintTsp.setShader(sweep);
+                tspMatrix.setRotate(startAngle + 270, cx, cy);
+                tspSweep.setLocalMatrix(tspMatrix);
+                paintTsp.setShader(tspSweep);
                 canvas.drawArc(left, top, right, bottom, 0f, 360f, true, paintTsp);
                 paintTsp.setShader(null);
 
@@ -304,11 +396,12 @@ public class SpritePlayer extends RelativeLayout {
                     paintTsp.setColor(Color.BLACK);
                 } else {
                     paintTsp.setColor(Color.TRANSPARENT);
-                    paintTsp.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.CLEAR));
+                    paintTsp.setXfermode(xfermodeClear);
                 }
                 canvas.drawCircle(cx, cy, radius, paintTsp);
 
                 if (icons.length == colors.length) {
+                    // already tinted and sized for the number of icons, just blit them
                     int drawableIcons = 0;
                     for (int i = 0; i < icons.length; i++) {
                         if (icons[i] != null) {
@@ -325,21 +418,9 @@ public class SpritePlayer extends RelativeLayout {
                                 y += Math.sin(Math.toRadians(startAngle + 270 + (anglePerColor * i))) * radius/2;
                             }
 
-                            float w = 24 * dpToPx;
-                            float h = 24 * dpToPx;
-                            if (drawableIcons == 1) {
-                                w *= 2f;
-                                h *= 2f;
-                            }
-                            float l = x - w/2f;
-                            float t = y - h/2f;
-                            icons[i].setBounds(Math.round(l), Math.round(t), Math.round(l + w), Math.round(h + t));
-                            icons[i].setColorFilter(null);
-                            icons[i].setTintList(null);
-                            icons[i].setTintBlendMode(BlendMode.SRC_IN);
-                            icons[i].setTintMode(PorterDuff.Mode.SRC_IN);
-                            icons[i].setTint(colors[i]);
-                            icons[i].draw(canvas);
+                            float l = x - icons[i].getWidth()/2f;
+                            float t = y - icons[i].getHeight()/2f;
+                            canvas.drawBitmap(icons[i], Math.round(l), Math.round(t), paintTspIcon);
                         }
                     }
                 }
@@ -348,43 +429,72 @@ public class SpritePlayer extends RelativeLayout {
             paint.setXfermode(null);
             paint.setColor(Color.WHITE);
             SpriteSheet.Sprite sprite = spriteSheet.getFrame(frame);
-            Bitmap bitmap = sprite.getBitmap();
+            if (sprite == null) return;
+            // hardware canvas: draw from the GPU-side copies so the sheets are only uploaded once
+            boolean hardware = canvas.isHardwareAccelerated();
+            Bitmap bitmap = hardware ? sprite.getHardwareBitmap() : sprite.getBitmap();
             Rect area = sprite.getArea();
-            Bitmap black = spriteSheet.getBlackFrame();
+            Bitmap black = hardware ? spriteSheet.getHardwareBlackFrame() : spriteSheet.getBlackFrame();
             if ((colors != null) && (colors.length == 1)) {
                 if (blackFill && !Settings.tuning) {
-                    if (!black.isRecycled()) {
+                    if ((black != null) && !black.isRecycled()) {
+                        // black frame and sheets are alpha masks, colored by the paint
                         paint.setColorFilter(null);
-                        canvas.drawBitmap(black, new Rect(0, 0, black.getWidth(), black.getHeight()), dest, paint);
+                        paint.setColor(Color.BLACK);
+                        blackSrc.set(0, 0, black.getWidth(), black.getHeight());
+                        canvas.drawBitmap(black, blackSrc, dest, paint);
+                        paint.setColor(Color.WHITE);
                     }
                 }
 
                 // fast single-color mode
-                paint.setColorFilter(new PorterDuffColorFilter(colors[0], PorterDuff.Mode.SRC_ATOP));
+                if ((singleColorFilter == null) || (singleColorFilterColor != colors[0])) {
+                    singleColorFilter = new PorterDuffColorFilter(colors[0], PorterDuff.Mode.SRC_ATOP);
+                    singleColorFilterColor = colors[0];
+                }
+                paint.setColorFilter(singleColorFilter);
                 if (!bitmap.isRecycled()) {
                     canvas.drawBitmap(bitmap, area, dest, paint);
                 }
             } else {
-                // slower multi-colored mode
                 paint.setColorFilter(null);
-                if (!bitmap.isRecycled()) {
-                    canvas.drawBitmap(bitmap, area, dest, paint);
+
+                // pre-tinted copies rotate in steps, keep the regular path in sync with that. Not
+                // used on hardware canvas, there the arcs are cheap and tinted copies would need
+                // to be uploaded again whenever they change
+                Bitmap tinted = null;
+                if (preTinted && !hardware && (colors != null)) {
+                    int bucket = TintedSpriteSheets.getRotationBucket(startAngle);
+                    startAngle = bucket * TintedSpriteSheets.DEGREES_PER_BUCKET;
+                    tinted = tintedSpriteSheets.getFrame(spriteSheet, sprite, colors, bucket, destDouble);
                 }
 
-                paint.setXfermode(new PorterDuffXfermode(drawBackground ? PorterDuff.Mode.MULTIPLY : PorterDuff.Mode.SRC_ATOP));
+                if (tinted != null) {
+                    // colors already baked in, single blit
+                    canvas.drawBitmap(tinted, area, dest, paint);
+                } else {
+                    // slower multi-colored mode, sprite drawn white (paint color) first
+                    if (!bitmap.isRecycled()) {
+                        canvas.drawBitmap(bitmap, area, dest, paint);
+                    }
 
-                float anglePerColor = 360f / colors.length;
-                for (int i = 0; i < colors.length; i++) {
-                    // we use double size here because the arc may cut off the larger S10+ animation otherwise
-                    paint.setColor(colors[i]);
-                    canvas.drawArc(destDouble.left, destDouble.top, destDouble.right, destDouble.bottom, startAngle + 270 + (anglePerColor * i), anglePerColor, true, paint);
+                    paint.setXfermode(drawBackground ? xfermodeMultiply : xfermodeSrcAtop);
+
+                    float anglePerColor = 360f / colors.length;
+                    for (int i = 0; i < colors.length; i++) {
+                        // we use double size here because the arc may cut off the larger S10+ animation otherwise
+                        paint.setColor(colors[i]);
+                        canvas.drawArc(destDouble.left, destDouble.top, destDouble.right, destDouble.bottom, startAngle + 270 + (anglePerColor * i), anglePerColor, true, paint);
+                    }
                 }
 
                 if (blackFill && !Settings.tuning) {
-                    if (!black.isRecycled()) {
+                    if ((black != null) && !black.isRecycled()) {
                         paint.setColorFilter(null);
                         paint.setXfermode(null);
-                        canvas.drawBitmap(black, new Rect(0, 0, black.getWidth(), black.getHeight()), dest, paint);
+                        paint.setColor(Color.BLACK);
+                        blackSrc.set(0, 0, black.getWidth(), black.getHeight());
+                        canvas.drawBitmap(black, blackSrc, dest, paint);
                     }
                 }
             }
@@ -393,13 +503,15 @@ public class SpritePlayer extends RelativeLayout {
 
     private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
         private long startTimeNanos = 0;
+        private long lastDrawNanos = 0;
         private int lastFrameDrawn = -1;
         private int[] lastColors = null;
 
         @Override
         public void doFrame(long frameTimeNanos) {
             synchronized (sync) {
-                // Software canvas 2x quicker than hardware during tests
+                // Software canvas was 2x quicker than hardware for the plain sprite blit during
+                // tests, but this differs per mode and device, see RendererCalibration
                 SpriteSheet spriteSheet = getSpriteSheet();
                 if (draw && surfaceReady) {
                     // AOD changes position every 10 minutes to prevent burn-in, so that's
@@ -423,13 +535,13 @@ public class SpritePlayer extends RelativeLayout {
                             onAnimationListener.onAnimationFrameStart(draw); // intentionally ignore result
                         }
                         if (draw) {
-                            Canvas canvas = surfaceView.getHolder().lockCanvas();
+                            Canvas canvas = lockCanvas();
                             if (canvas != null) {
                                 try {
                                     renderFrame(canvas, null, 0, cycle_part * 360f, cycle_part * 16f * dpToPx);
                                 } finally {
                                     try {
-                                        surfaceView.getHolder().unlockCanvasAndPost(canvas);
+                                        unlockCanvasAndPost(canvas);
                                     } catch (IllegalStateException e) {
                                         // no action
                                     }
@@ -445,13 +557,13 @@ public class SpritePlayer extends RelativeLayout {
                             onAnimationListener.onAnimationFrameStart(true); // intentionally ignore result
                         }
 
-                        Canvas canvas = surfaceView.getHolder().lockCanvas();
+                        Canvas canvas = lockCanvas();
                         if (canvas != null) {
                             try {
                                 renderFrame(canvas, null, 0, 0f, 0f);
                             } finally {
                                 try {
-                                    surfaceView.getHolder().unlockCanvasAndPost(canvas);
+                                    unlockCanvasAndPost(canvas);
                                 } catch (IllegalStateException e) {
                                     // no action
                                 }
@@ -461,17 +573,26 @@ public class SpritePlayer extends RelativeLayout {
                         if (onAnimationListener != null) {
                             onAnimationListener.onAnimationFrameEnd(true);
                         }
-                    } else { // ready
+                    } else { // ready, or at least partially
+                        double frameTime = (double)1000000000 / ((double)spriteSheet.getFrameRate() * (double)speed);
                         if (frame == -1) {
                             startTimeNanos = frameTimeNanos;
                             frame = 0;
                         } else {
-                            double frameTime = (double)1000000000 / ((double)spriteSheet.getFrameRate() * (double)speed);
                             frame = (int)Math.floor((double)(frameTimeNanos - startTimeNanos)/frameTime);
                         }
 
+                        // Sheet still being rendered and we've caught up with it: hold the
+                        // playhead at the last available frame until more frames arrive
+                        int framesAvailable = spriteSheet.getFramesAvailable();
+                        if ((framesAvailable < spriteSheet.getFrames()) && (frame >= framesAvailable)) {
+                            frame = Math.max(framesAvailable - 1, 0);
+                            startTimeNanos = frameTimeNanos - (long)(frame * frameTime);
+                        }
+
                         int drawFrame = Math.max(Math.min(frame, spriteSheet.getFrames() - 1), 0);
                         boolean doDraw = ((drawFrame != lastFrameDrawn) || colorsChanged(lastColors) || surfaceInvalidated);
+                        doDraw |= (redrawIntervalNanos > 0) && (frameTimeNanos - lastDrawNanos >= redrawIntervalNanos);
                         if (onAnimationListener != null) {
                             doDraw = onAnimationListener.onAnimationFrameStart(doDraw);
                         }
@@ -479,14 +600,15 @@ public class SpritePlayer extends RelativeLayout {
                             surfaceInvalidated = false;
                             lastFrameDrawn = drawFrame;
                             lastColors = colors;
+                            lastDrawNanos = frameTimeNanos;
 
-                            Canvas canvas = surfaceView.getHolder().lockCanvas();
+                            Canvas canvas = lockCanvas();
                             if (canvas != null) {
                                 try {
                                     renderFrame(canvas, spriteSheet, drawFrame, cycle_part * 360f, 0f);
                                 } finally {
                                     try {
-                                        surfaceView.getHolder().unlockCanvasAndPost(canvas);
+                                        unlockCanvasAndPost(canvas);
                                     } catch (IllegalStateException e) {
                                         // no action
                                     }
@@ -501,9 +623,20 @@ public class SpritePlayer extends RelativeLayout {
                             if ((onAnimationListener == null) || !onAnimationListener.onAnimationComplete()) {
                                 draw = false;
                             }
+                        } else if (framesAvailable >= spriteSheet.getFrames()) {
+                            // Sleep until the sprite actually changes instead of waking up every
+                            // vsync, which on 120Hz panels is twice as often as a 60fps source
+                            // needs, and a lot more for the 1fps BLINK/SINGLE sheets. Sheets
+                            // still being rendered keep polling every vsync for new frames.
+                            long next = startTimeNanos + (long)Math.ceil((frame + 1) * frameTime);
+                            if (redrawIntervalNanos > 0) {
+                                next = Math.min(next, lastDrawNanos + redrawIntervalNanos);
+                            }
+                            nextFrameNanos = next;
                         }
                     }
                 }
+                if (draw && surfaceReady) maybeCalibrate(spriteSheet);
                 if (draw) callNextFrame(!surfaceReady);
             }
         }
@@ -519,8 +652,16 @@ public class SpritePlayer extends RelativeLayout {
     private void callNextFrame(boolean immediately) {
         cancelNextFrame();
         if (immediately) surfaceInvalidated = true;
+
+        // pacing target is only valid for the call directly following the frame that set it
+        long delayNanos = immediately ? 0 : nextFrameNanos - System.nanoTime();
+        nextFrameNanos = 0;
+
         if (isTSPMode() && ((Math.abs(SystemClock.elapsedRealtime() - modeStart) > TSP_FAST_DRAW_TIME) || immediately)) {
             handlerRender.postDelayed(tspFrame, immediately ? 0 : 250);
+        } else if (delayNanos > 0) {
+            // rounded up, Choreographer runs us on the first vsync at or after the delay
+            choreographer.postFrameCallbackDelayed(frameCallback, (delayNanos + 999999L) / 1000000L);
         } else {
             choreographer.postFrameCallback(frameCallback);
         }
@@ -547,9 +688,9 @@ public class SpritePlayer extends RelativeLayout {
             destDouble.set(dest.centerX() - width, dest.centerY() - height, dest.centerX() + width, dest.centerY() + height);
             if (
                 !forceSpriteSheetReload &&
-                (spriteSheetSwirlPrevious != null) && (spriteSheetSwirlPrevious.getWidth() == width) && (spriteSheetSwirlPrevious.getHeight() == height) &&
-                (spriteSheetBlinkPrevious != null) && (spriteSheetBlinkPrevious.getWidth() == width) && (spriteSheetBlinkPrevious.getHeight() == height) &&
-                (spriteSheetSinglePrevious != null) && (spriteSheetSinglePrevious.getWidth() == width) && (spriteSheetSinglePrevious.getHeight() == height)
+                (spriteSheetSwirlPrevious != null) && spriteSheetSwirlPrevious.isValid() && (spriteSheetSwirlPrevious.getWidth() == width) && (spriteSheetSwirlPrevious.getHeight() == height) &&
+                (spriteSheetBlinkPrevious != null) && spriteSheetBlinkPrevious.isValid() && (spriteSheetBlinkPrevious.getWidth() == width) && (spriteSheetBlinkPrevious.getHeight() == height) &&
+                (spriteSheetSinglePrevious != null) && spriteSheetSinglePrevious.isValid() && (spriteSheetSinglePrevious.getWidth() == width) && (spriteSheetSinglePrevious.getHeight() == height)
             ) {
                 swapSpriteSheet(null);
                 evaluate();
@@ -569,30 +710,54 @@ public class SpritePlayer extends RelativeLayout {
                 if ((listener != null) && (callbackId == spriteSheetLoadingId)) {
                     if (handleForceReload) {
                         if (spriteSheetSwirlPrevious != null) {
-                            spriteSheetSwirlPrevious.recycle();
+                            spriteSheetSwirlPrevious.release();
                             spriteSheetSwirlPrevious = null;
                         }
                         if (spriteSheetBlinkPrevious != null) {
-                            spriteSheetBlinkPrevious.recycle();
+                            spriteSheetBlinkPrevious.release();
                             spriteSheetBlinkPrevious = null;
                         }
                         if (spriteSheetSinglePrevious != null) {
-                            spriteSheetSinglePrevious.recycle();
+                            spriteSheetSinglePrevious.release();
                             spriteSheetSinglePrevious = null;
                         }
                         forceSpriteSheetReload = false;
                     }
 
-                    SpriteSheet spriteSheetSwirl = listener.onSpriteSheetNeeded(width, height, Mode.SWIRL);
-                    SpriteSheet spriteSheetBlink = listener.onSpriteSheetNeeded(width, height, Mode.BLINK);
-                    SpriteSheet spriteSheetSingle = listener.onSpriteSheetNeeded(width, height, Mode.SINGLE);
-                    synchronized (sync) {
-                        setSpriteSheet(spriteSheetSwirl, Mode.SWIRL);
-                        setSpriteSheet(spriteSheetBlink, Mode.BLINK);
-                        setSpriteSheet(spriteSheetSingle, Mode.SINGLE);
-                        spriteSheetLoading--;
-                        surfaceInvalidated = true;
-                        evaluate();
+                    // Build all modes concurrently, each on its own worker. Every mode is
+                    // published as soon as it completes, unless a newer load has been
+                    // requested in the meantime.
+                    final AtomicInteger remaining = new AtomicInteger(LOADER_MODES.length);
+                    for (final Mode mode : LOADER_MODES) {
+                        loaderExecutor.execute(() -> {
+                            SpriteSheet spriteSheet = null;
+                            if (callbackId == spriteSheetLoadingId) {
+                                spriteSheet = listener.onSpriteSheetNeeded(width, height, mode, mode != Mode.SWIRL ? null : (partial, framesAvailable) -> {
+                                    // publish the first frame so playback can start while the rest renders
+                                    if (framesAvailable == 1) {
+                                        synchronized (sync) {
+                                            SpriteSheet retained;
+                                            if ((callbackId == spriteSheetLoadingId) && ((retained = partial.retain()) != null)) {
+                                                setSpriteSheet(retained, Mode.SWIRL);
+                                                surfaceInvalidated = true;
+                                            }
+                                        }
+                                    }
+                                });
+                            }
+                            synchronized (sync) {
+                                if (callbackId == spriteSheetLoadingId) {
+                                    setSpriteSheet(spriteSheet, mode);
+                                } else if (spriteSheet != null) {
+                                    spriteSheet.release();
+                                }
+                                if (remaining.decrementAndGet() == 0) {
+                                    spriteSheetLoading--;
+                                    surfaceInvalidated = true;
+                                    evaluate();
+                                }
+                            }
+                        });
                     }
                 } else {
                     synchronized (sync) {
@@ -616,39 +781,212 @@ public class SpritePlayer extends RelativeLayout {
         this.onAnimationListener = onAnimationListener;
     }
 
+    public void setOnRendererCalibratedListener(OnRendererCalibratedListener onRendererCalibratedListener) {
+        this.onRendererCalibratedListener = onRendererCalibratedListener;
+    }
+
+    private static Mode getRendererMode(Mode mode) {
+        return mode == Mode.TSP_HIDE ? Mode.TSP : mode;
+    }
+
+    /**
+     * Select renderer for mode, null if not known yet, in which case software rendering is used
+     * until a calibration run has determined which is faster.
+     */
+    public void setHardwareRenderer(Mode mode, Boolean hardware) {
+        synchronized (sync) {
+            if (rendererCalibration != null && rendererCalibration.mode == getRendererMode(mode) && hardware != null) {
+                rendererCalibration.abort();
+            }
+            hardwareRenderer[getRendererMode(mode).ordinal()] = hardware;
+            applyRenderer();
+        }
+    }
+
+    private void applyRenderer() {
+        synchronized (sync) {
+            Boolean hardware = hardwareRenderer[getRendererMode(drawMode).ordinal()];
+            final boolean wanted = (hardware != null) && hardware;
+            if (wanted != surfaceHardware) {
+                handlerMain.post(() -> replaceSurfaceView(wanted));
+            }
+        }
+    }
+
+    private void maybeCalibrate(SpriteSheet spriteSheet) {
+        if ((rendererCalibration != null) || (width <= 0) || (height <= 0)) return;
+        Mode mode = getRendererMode(drawMode);
+        if (hardwareRenderer[mode.ordinal()] != null) return;
+        if (mode == Mode.TSP) {
+            // nothing to measure until the circle is actually drawn
+            if (tspBlank || (drawMode != Mode.TSP) || (SystemClock.elapsedRealtime() - modeStart <= TSP_FIRST_DRAW_DELAY)) return;
+        } else if ((spriteSheet == null) || !spriteSheet.isComplete()) {
+            return;
+        }
+        rendererCalibration = new RendererCalibration(mode, width, height);
+        handlerLoader.post(rendererCalibration);
+    }
+
+    /*
+        Renders the current mode offscreen with both a software and a hardware canvas, a frame
+        of each per step, and picks whichever has the lowest median time to get the frame queued.
+        The lock is only held while a frame is drawn, so the visible animation keeps running;
+        frame arrival is reported by the ImageReader on the loader thread.
+     */
+    private class RendererCalibration implements Runnable, ImageReader.OnImageAvailableListener {
+        private final Mode mode;
+        private final ImageReader readerSoftware;
+        private final ImageReader readerHardware;
+        private final long[] timesSoftware = new long[CALIBRATION_SAMPLES];
+        private final long[] timesHardware = new long[CALIBRATION_SAMPLES];
+        private final Runnable timeout = () -> onFrame(null);
+        private int sample = 0;
+        private boolean done = false;
+        private ImageReader waiting = null;
+        private long start = 0;
+
+        private RendererCalibration(Mode mode, int width, int height) {
+            this.mode = mode;
+            readerSoftware = ImageReader.newInstance(width, height, PixelFormat.RGBA_8888, 2);
+            readerHardware = ImageReader.newInstance(width, height, PixelFormat.RGBA_8888, 2);
+            readerSoftware.setOnImageAvailableListener(this, handlerLoader);
+            readerHardware.setOnImageAvailableListener(this, handlerLoader);
+        }
+
+        @Override
+        public void run() {
+            render(readerSoftware);
+        }
+
+        private void render(ImageReader reader) {
+            synchronized (sync) {
+                if (done) return;
+                SpriteSheet spriteSheet = getSpriteSheet();
+                if (!draw || (getRendererMode(drawMode) != mode) || (!isTSPMode() && ((spriteSheet == null) || !spriteSheet.isComplete()))) {
+                    // try again next time this mode is shown
+                    abort();
+                    return;
+                }
+                int frame = spriteSheet != null ? sample % spriteSheet.getFrames() : 0;
+                Surface surface = reader.getSurface();
+                try {
+                    start = System.nanoTime();
+                    Canvas canvas = reader == readerHardware ? surface.lockHardwareCanvas() : surface.lockCanvas(null);
+                    try {
+                        renderFrame(canvas, spriteSheet, frame, 0f, 0f);
+                    } finally {
+                        surface.unlockCanvasAndPost(canvas);
+                    }
+                } catch (Exception e) {
+                    // can't use hardware canvas here, don't keep trying
+                    Slog.e("SpritePlayer", "Calibration [%s]: %s", mode.toString(), e.toString());
+                    finish(false);
+                    return;
+                }
+                waiting = reader;
+            }
+            // hardware canvas draws asynchronously, the time until the frame arrives includes that
+            handlerLoader.postDelayed(timeout, CALIBRATION_FRAME_TIMEOUT);
+        }
+
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            synchronized (sync) {
+                if (done) return;
+                Image image = reader.acquireLatestImage();
+                if (image != null) image.close();
+                // late frame of a step that already timed out
+                if (reader != waiting) return;
+            }
+            handlerLoader.removeCallbacks(timeout);
+            onFrame(reader);
+        }
+
+        private void onFrame(ImageReader reader) {
+            long time = System.nanoTime() - start;
+            synchronized (sync) {
+                if (done) return;
+                if (reader == null) reader = waiting;
+                waiting = null;
+                if (reader == readerSoftware) {
+                    timesSoftware[sample] = time;
+                } else {
+                    timesHardware[sample] = time;
+                    sample++;
+                    if (sample >= CALIBRATION_SAMPLES) {
+                        Arrays.sort(timesSoftware);
+                        Arrays.sort(timesHardware);
+                        long software = timesSoftware[CALIBRATION_SAMPLES / 2];
+                        long hardware = timesHardware[CALIBRATION_SAMPLES / 2];
+                        Slog.d("SpritePlayer", "Calibration [%s] software:%.3fms hardware:%.3fms", mode.toString(), software / 1000000.0, hardware / 1000000.0);
+                        finish(hardware < software);
+                        return;
+                    }
+                }
+            }
+            if (reader == readerSoftware) {
+                render(readerHardware);
+            } else {
+                handlerLoader.postDelayed(this, CALIBRATION_INTERVAL);
+            }
+        }
+
+        private void finish(boolean hardware) {
+            close();
+            hardwareRenderer[mode.ordinal()] = hardware;
+            applyRenderer();
+            OnRendererCalibratedListener listener = onRendererCalibratedListener;
+            if (listener != null) handlerMain.post(() -> listener.onRendererCalibrated(mode, hardware));
+        }
+
+        private void abort() {
+            close();
+        }
+
+        private void close() {
+            done = true;
+            handlerLoader.removeCallbacks(this);
+            handlerLoader.removeCallbacks(timeout);
+            readerSoftware.close();
+            readerHardware.close();
+            rendererCalibration = null;
+        }
+    }
+
     private void resetSpriteSheet(Mode mode) {
         synchronized (sync) {
             if ((mode == null) || (drawMode == mode)) {
                 frame = -1;
             }
             if (((mode == null) || (mode == Mode.SWIRL)) && spriteSheetSwirl != null) {
-                SpriteSheet recycle = spriteSheetSwirlPrevious;
+                SpriteSheet release = spriteSheetSwirlPrevious;
                 spriteSheetSwirlPrevious = spriteSheetSwirl;
                 spriteSheetSwirl = null;
-                if (recycle != null) recycle.recycle();
+                if (release != null) release.release();
             }
             if (((mode == null) || (mode == Mode.BLINK)) && spriteSheetBlink != null) {
-                SpriteSheet recycle = spriteSheetBlinkPrevious;
+                SpriteSheet release = spriteSheetBlinkPrevious;
                 spriteSheetBlinkPrevious = spriteSheetBlink;
                 spriteSheetBlink = null;
-                if (recycle != null) recycle.recycle();
+                if (release != null) release.release();
             }
             if (((mode == null) || (mode == Mode.SINGLE)) && spriteSheetSingle != null) {
-                SpriteSheet recycle = spriteSheetSinglePrevious;
+                tintedSpriteSheets.clear();
+                SpriteSheet release = spriteSheetSinglePrevious;
                 spriteSheetSinglePrevious = spriteSheetSingle;
                 spriteSheetSingle = null;
-                if (recycle != null) recycle.recycle();
+                if (release != null) release.release();
             }
             if ((mode == null) || (drawMode == mode)) {
                 surfaceInvalidated = true;
                 try {
-                    Canvas canvas = surfaceView.getHolder().lockCanvas();
+                    Canvas canvas = lockCanvas();
                     try {
                         if (!canvas.isHardwareAccelerated()) {
                             canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
                         }
                     } finally {
-                        surfaceView.getHolder().unlockCanvasAndPost(canvas);
+                        unlockCanvasAndPost(canvas);
                     }
                 } catch (Throwable t) {
                     // ...
@@ -675,13 +1013,13 @@ public class SpritePlayer extends RelativeLayout {
             if ((mode == null) || (drawMode == mode)) {
                 surfaceInvalidated = true;
                 try {
-                    Canvas canvas = surfaceView.getHolder().lockCanvas();
+                    Canvas canvas = lockCanvas();
                     try {
                         if (!canvas.isHardwareAccelerated()) {
                             canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
                         }
                     } finally {
-                        surfaceView.getHolder().unlockCanvasAndPost(canvas);
+                        unlockCanvasAndPost(canvas);
                     }
                 } catch (Throwable t) {
                     // ...
@@ -690,13 +1028,39 @@ public class SpritePlayer extends RelativeLayout {
         }
     }
 
+    /**
+     * Releases all sprite sheets, including the previous ones kept for swapping. Loads in
+     * progress are discarded.
+     */
+    public void releaseSpriteSheets() {
+        synchronized (sync) {
+            spriteSheetLoadingId++;
+            lastSpriteSheetRequest.set(-1, -1);
+            resetSpriteSheet(null);
+            SpriteSheet[] release = new SpriteSheet[] { spriteSheetSwirlPrevious, spriteSheetBlinkPrevious, spriteSheetSinglePrevious };
+            spriteSheetSwirlPrevious = null;
+            spriteSheetBlinkPrevious = null;
+            spriteSheetSinglePrevious = null;
+            for (SpriteSheet spriteSheet : release) {
+                if (spriteSheet != null) spriteSheet.release();
+            }
+        }
+    }
+
+    /**
+     * Takes over the caller's reference to spriteSheet
+     */
     public void setSpriteSheet(SpriteSheet spriteSheet, Mode mode) {
         synchronized (sync) {
             if (
                     ((mode == Mode.SWIRL) && (spriteSheet == this.spriteSheetSwirl)) ||
                     ((mode == Mode.BLINK) && (spriteSheet == this.spriteSheetBlink)) ||
                     ((mode == Mode.SINGLE) && (spriteSheet == this.spriteSheetSingle))
-            ) return;
+            ) {
+                // we already hold a reference
+                if (spriteSheet != null) spriteSheet.release();
+                return;
+            }
             resetSpriteSheet(mode);
             switch (mode) {
                 case SWIRL:
@@ -720,7 +1084,7 @@ public class SpritePlayer extends RelativeLayout {
         }
     }
 
-    public void setIcons(Drawable[] icons) {
+    public void setIcons(Bitmap[] icons) {
         synchronized (sync) {
             this.icons = icons;
         }
@@ -799,6 +1163,7 @@ public class SpritePlayer extends RelativeLayout {
                 handlerMain.post(scheduleBackgroundDraw);
             }
             test_lastDrawMode = drawMode;
+            applyRenderer();
             if (blackFill != this.blackFill) {
                 this.blackFill = blackFill;
                 redraw = true;
@@ -867,6 +1232,75 @@ public class SpritePlayer extends RelativeLayout {
         }
     }
 
+    /**
+     * Redraw the current frame at least this often, even if it hasn't changed. Also caps how
+     * long frame pacing may sleep. 0 to disable.
+     */
+    public void setRedrawInterval(long intervalMs) {
+        synchronized (sync) {
+            long intervalNanos = intervalMs * 1000000L;
+            if (redrawIntervalNanos != intervalNanos) {
+                redrawIntervalNanos = intervalNanos;
+                if (draw) callNextFrame(false);
+            }
+        }
+    }
+
+    public void setPreTinted(boolean preTinted) {
+        synchronized (sync) {
+            if (this.preTinted != preTinted) {
+                this.preTinted = preTinted;
+                if (!preTinted) tintedSpriteSheets.clear();
+                surfaceInvalidated = true;
+            }
+        }
+    }
+
+    // Benchmark hooks, render straight to a canvas bypassing the surface and frame pacing. Only
+    // use on a SpritePlayer instance that isn't attached to a window.
+    public void test_prepareRender(Mode mode, int[] colors, int width, int height) {
+        synchronized (sync) {
+            drawMode = mode;
+            modeStart = SystemClock.elapsedRealtime() - TSP_FIRST_DRAW_DELAY - 1;
+            this.colors = colors;
+            this.icons = new Bitmap[colors.length];
+            this.width = width;
+            this.height = height;
+            dest.set(0, 0, width, height);
+            destDouble.set(dest.centerX() - width, dest.centerY() - height, dest.centerX() + width, dest.centerY() + height);
+        }
+    }
+
+    public void test_renderFrame(Canvas canvas, SpriteSheet spriteSheet, int frame, float startAngle) {
+        synchronized (sync) {
+            renderFrame(canvas, spriteSheet, frame, startAngle, 0f);
+        }
+    }
+
+    /**
+     * Waits for work queued on the loader thread, such as baking pre-tinted variants
+     */
+    public void test_awaitLoader() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        handlerLoader.post(latch::countDown);
+        latch.await();
+    }
+
+    /**
+     * Releases sprite sheets and stops the render and loader threads, for instances that are
+     * never attached to a window. Not usable afterwards.
+     */
+    public void test_release() {
+        synchronized (sync) {
+            if (rendererCalibration != null) rendererCalibration.abort();
+        }
+        tintedSpriteSheets.clear();
+        releaseSpriteSheets();
+        handlerThreadRender.quitSafely();
+        handlerThreadLoader.quitSafely();
+        loaderExecutor.shutdown();
+    }
+
     public Object getSynchronizer() {
         return sync;
     }
@@ -27,7 +27,9 @@ import android.graphics.Rect;
 import com.airbnb.lottie.LottieComposition;
 import com.airbnb.lottie.LottieDrawable;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 @SuppressWarnings({ "WeakerAccess", "UnusedReturnValue", "FieldCanBeLocal" })
@@ -51,8 +53,8 @@ public class SpriteSheet {
         return frame;
     }
 
-    private static Bitmap blackFrame(Bitmap superimposedFrame) {
-        Bitmap bigFrame = Bitmap.createBitmap(superimposedFrame.getWidth() * 4, superimposedFrame.getHeight() * 4, Bitmap.Config.ARGB_8888);
+    private static BlackFrame blackFrame(Bitmap superimposedFrame) {
+        Bitmap bigFrame = Bitmap.createBitmap(superimposedFrame.getWidth() * BlackFrame.SCALE, superimposedFrame.getHeight() * BlackFrame.SCALE, Bitmap.Config.ARGB_8888);
         Canvas bigCanvas = new Canvas(bigFrame);
 
         Paint paint = new Paint();
@@ -62,7 +64,7 @@ public class SpriteSheet {
         bigCanvas.drawBitmap(superimposedFrame, new Rect(0, 0, superimposedFrame.getWidth(), superimposedFrame.getHeight()), new Rect(0, 0, bigFrame.getWidth(), bigFrame.getHeight()), paint);
 
         int[] pixels = new int[bigFrame.getWidth() * bigFrame.getHeight()];
-        int[] pixelsBlack = new int[bigFrame.getWidth() * bigFrame.getHeight()];
+        int[] spans = new int[bigFrame.getHeight() * 2];
 
         bigFrame.getPixels(pixels, 0, bigFrame.getWidth(), 0, 0, bigFrame.getWidth(), bigFrame.getHeight());
         for (int y = 0; y < bigFrame.getHeight(); y++) {
@@ -86,27 +88,140 @@ public class SpriteSheet {
             }
 
             if ((start >= 0) && (end >= 0) && (end >= start)) {
-                index = y * bigFrame.getWidth();
-                for (int x = start; x < end; x++) {
-                    pixelsBlack[index + x] = (int)0xFF000000;
+                spans[y * 2] = start;
+                spans[y * 2 + 1] = end;
+            } else {
+                spans[y * 2] = -1;
+                spans[y * 2 + 1] = -1;
+            }
+        }
+
+        bigFrame.recycle();
+
+        return new BlackFrame(superimposedFrame.getWidth(), superimposedFrame.getHeight(), spans);
+    }
+
+    /**
+     * Area inside the animation that is filled black, as a single span per scanline at
+     * SCALE times the frame resolution. Immutable, shared between sheets.
+     */
+    public static class BlackFrame {
+        public static final int SCALE = 4;
+
+        private final int width;
+        private final int height;
+        private final int[] spans;
+
+        BlackFrame(int width, int height, int[] spans) {
+            if (spans.length != height * SCALE * 2) throw new IllegalArgumentException("span count mismatch");
+            this.width = width;
+            this.height = height;
+            this.spans = spans;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        int[] getSpans() {
+            return spans;
+        }
+
+        /**
+         * ALPHA_8 mask of the spans, each pixel covering SCALE x SCALE supersampled pixels, to be
+         * drawn with a black paint.
+         */
+        public Bitmap toBitmap() {
+            Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ALPHA_8);
+            int stride = bitmap.getRowBytes();
+            byte[] alpha = new byte[stride * height];
+            int[] coverage = new int[width];
+            for (int y = 0; y < height; y++) {
+                Arrays.fill(coverage, 0);
+                for (int sub = 0; sub < SCALE; sub++) {
+                    int start = spans[(y * SCALE + sub) * 2];
+                    int end = Math.min(spans[(y * SCALE + sub) * 2 + 1], width * SCALE);
+                    if (start < 0) continue;
+                    for (int x = start / SCALE; x * SCALE < end; x++) {
+                        coverage[x] += Math.min(end, (x + 1) * SCALE) - Math.max(start, x * SCALE);
+                    }
+                }
+                for (int x = 0; x < width; x++) {
+                    alpha[y * stride + x] = (byte)((coverage[x] * 255) / (SCALE * SCALE));
                 }
             }
+            bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(alpha));
+            return bitmap;
         }
+    }
 
-        Bitmap bigBlackFrame = Bitmap.createBitmap(bigFrame.getWidth(), bigFrame.getHeight(), Bitmap.Config.ARGB_8888);
-        bigBlackFrame.setPixels(pixelsBlack, 0, bigFrame.getWidth(), 0, 0, bigFrame.getWidth(), bigFrame.getHeight());
+    /**
+     * Shared input for building sprite sheets of a single composition. The superimposed and
+     * black frames do not depend on the requested size or mode, so they are computed only once,
+     * even when multiple sheets are built concurrently. The superimposed frame is dropped when
+     * nobody is using it and the black frame has been computed from it, and rendered again if
+     * another sheet needs it; the source lives as long as the composition is loaded.
+     */
+    public static class Source {
+        private final LottieComposition lottieComposition;
+        private Bitmap superimposedFrame = null;
+        private int superimposedUsers = 0;
+        private BlackFrame blackFrame = null;
+
+        public Source(LottieComposition lottieComposition) {
+            this.lottieComposition = lottieComposition;
+        }
 
-        Bitmap blackFrame = Bitmap.createBitmap(superimposedFrame.getWidth(), superimposedFrame.getHeight(), Bitmap.Config.ARGB_8888);
-        Canvas blackCanvas = new Canvas(blackFrame);
-        blackCanvas.drawBitmap(bigBlackFrame, new Rect(0, 0, bigBlackFrame.getWidth(), bigBlackFrame.getHeight()), new Rect(0, 0, blackFrame.getWidth(), blackFrame.getHeight()), paint);
-        
-        bigFrame.recycle();
-        bigBlackFrame.recycle();
+        public LottieComposition getLottieComposition() {
+            return lottieComposition;
+        }
 
-        return blackFrame;
+        /**
+         * Must be followed by releaseSuperimposedFrame(), the bitmap is not valid after that
+         */
+        public synchronized Bitmap acquireSuperimposedFrame() {
+            if (superimposedFrame == null) {
+                superimposedFrame = superimposedFrame(lottieComposition);
+            }
+            superimposedUsers++;
+            return superimposedFrame;
+        }
+
+        public synchronized void releaseSuperimposedFrame() {
+            superimposedUsers--;
+            if ((superimposedUsers == 0) && (blackFrame != null) && (superimposedFrame != null)) {
+                superimposedFrame.recycle();
+                superimposedFrame = null;
+            }
+        }
+
+        public synchronized BlackFrame getBlackFrame() {
+            if (blackFrame == null) {
+                Bitmap frame = acquireSuperimposedFrame();
+                try {
+                    blackFrame = blackFrame(frame);
+                } finally {
+                    releaseSuperimposedFrame();
+                }
+            }
+            return blackFrame;
+        }
+    }
+
+    public interface OnFrameAvailableListener {
+        void onFrameAvailable(SpriteSheet spriteSheet, int framesAvailable);
     }
 
     public static SpriteSheet fromLottieComposition(LottieComposition lottieComposition, int width, int height, SpritePlayer.Mode mode) {
+        return fromSource(new Source(lottieComposition), width, height, mode, null);
+    }
+
+    public static SpriteSheet fromSource(Source source, int width, int height, SpritePlayer.Mode mode, OnFrameAvailableListener onFrameAvailableListener) {
+        LottieComposition lottieComposition = source.getLottieComposition();
         SpriteSheet ss;
 
         if (mode == SpritePlayer.Mode.SWIRL) {
@@ -120,6 +235,9 @@ public class SpriteSheet {
 
             Bitmap frame = Bitmap.createBitmap(lottieDrawable.getIntrinsicWidth(), lottieDrawable.getIntrinsicHeight(), Bitmap.Config.ARGB_8888);
 
+            // Frames are published as soon as they're rendered, so playback can start before
+            // the entire sheet is complete. The black frame is only needed for black fill,
+            // which is skipped until it is available.
             for (int i = 0; i < frames; i++) {
                 frame.eraseColor(Color.TRANSPARENT);
 
@@ -127,23 +245,30 @@ public class SpriteSheet {
                 lottieDrawable.setFrame(i);
                 lottieDrawable.draw(frame_canvas);
 
-                ss.addFrame(frame);
+                if (ss.addFrame(frame) == null) break; // recycled while building
+                if (onFrameAvailableListener != null) {
+                    onFrameAvailableListener.onFrameAvailable(ss, i + 1);
+                }
             }
+            frame.recycle();
 
-            SpriteSheet ss2 = fromLottieComposition(lottieComposition, width, height, SpritePlayer.Mode.SINGLE);
-            ss.setBlackFrame(ss2.getBlackFrame());
-            ss2.setBlackFrame(null);
+            if (!ss.isRecycled()) {
+                ss.setBlackFrame(source.getBlackFrame());
+            }
         } else if (mode == SpritePlayer.Mode.BLINK || mode == SpritePlayer.Mode.SINGLE) {
             ss = new SpriteSheet(width, height, mode == SpritePlayer.Mode.BLINK ? 2 : 1, 1);
 
-            Bitmap frame = superimposedFrame(lottieComposition);
-            ss.addFrame(frame);
+            Bitmap superimposed = source.acquireSuperimposedFrame();
+            try {
+                ss.addFrame(superimposed);
+            } finally {
+                source.releaseSuperimposedFrame();
+            }
 
-            ss.setBlackFrame(blackFrame(frame));
+            ss.setBlackFrame(source.getBlackFrame());
 
             if (mode == SpritePlayer.Mode.BLINK) {
-                frame.eraseColor(Color.TRANSPARENT);
-                ss.addFrame(frame);
+                ss.addFrame(null);
             }
         } else {
             return null;
@@ -157,21 +282,41 @@ public class SpriteSheet {
         }
     }
 
+    static SpriteSheet fromBitmaps(int width, int height, int frames, int frameRate, List<Bitmap> sheetBitmaps, BlackFrame blackFrame) {
+        // Sprites are laid out in order by addFrame(), so the areas can be reconstructed
+        // from the sheets alone
+        SpriteSheet ss = new SpriteSheet(width, height, frames, frameRate);
+        for (Bitmap bitmap : sheetBitmaps) {
+            Sheet sheet = ss.new Sheet(bitmap);
+            ss.sheets.add(sheet);
+            Rect area;
+            while ((ss.spritesAvailable < frames) && ((area = sheet.nextSprite()) != null)) {
+                ss.sprites[ss.spritesAvailable] = ss.new Sprite(sheet, area);
+                ss.spritesAvailable++;
+            }
+        }
+        ss.setBlackFrame(blackFrame);
+
+        if (ss.isValid()) {
+            return ss;
+        } else {
+            ss.recycle();
+            return null;
+        }
+    }
+
+    // Maximum sheet size, sheets are only as large as needed for the frames they hold
     private static final int SHEET_DIM = 1024;
 
     public class Sheet {
         private final Bitmap bitmap;
+        private Bitmap hardwareBitmap = null;
         private final int cols;
         private final int rows;
         private final int capacity;
         private int used = 0;
 
-        private Sheet() {
-            this(null);
-        }
-
         private Sheet(Bitmap bitmap) {
-            if (bitmap == null) bitmap = Bitmap.createBitmap(SHEET_DIM, SHEET_DIM, Bitmap.Config.ARGB_8888);
             this.bitmap = bitmap;
             cols = bitmap.getWidth() / width;
             rows = bitmap.getHeight() / height;
@@ -182,6 +327,27 @@ public class SpriteSheet {
             return bitmap;
         }
 
+        /**
+         * GPU-side copy of the sheet, uploaded once on first use. Until the sprite sheet is
+         * complete (or if the copy fails) the regular bitmap is returned.
+         */
+        public Bitmap getHardwareBitmap() {
+            synchronized (SpriteSheet.this) {
+                if ((hardwareBitmap == null) && !recycled && isComplete() && !bitmap.isRecycled()) {
+                    hardwareBitmap = bitmap.copy(Bitmap.Config.HARDWARE, false);
+                }
+                return hardwareBitmap != null ? hardwareBitmap : bitmap;
+            }
+        }
+
+        private void recycle() {
+            if (!bitmap.isRecycled()) bitmap.recycle();
+            if (hardwareBitmap != null) {
+                hardwareBitmap.recycle();
+                hardwareBitmap = null;
+            }
+        }
+
         public Rect nextSprite() {
             if (used >= capacity) {
                 return null;
@@ -212,26 +378,39 @@ public class SpriteSheet {
         public Bitmap getBitmap() {
             return sheet.getBitmap();
         }
+
+        public Bitmap getHardwareBitmap() {
+            return sheet.getHardwareBitmap();
+        }
     }
 
     private final List<Sheet> sheets = new ArrayList<>();
-    private final List<Sprite> sprites = new ArrayList<>();
+    private final Sprite[] sprites;
+    private volatile int spritesAvailable = 0;
+    private volatile boolean recycled = false;
 
     private final int width;
     private final int height;
     private final int frames;
     private final int frameRate;
 
-    private Bitmap blackFrame = null;
+    private volatile BlackFrame blackFrameSpans = null;
+    private volatile Bitmap blackFrame = null;
+    private Bitmap hardwareBlackFrame = null;
+
+    int references = 1; // guarded by SpriteSheetPool, the creator holds the first one
 
     private SpriteSheet(int width, int height, int frames, int frameRate) {
         this.width = width;
         this.height = height;
         this.frames = frames;
         this.frameRate = frameRate;
+        this.sprites = new Sprite[frames];
     }
 
-    private Sprite addFrame(Bitmap source) {
+    private synchronized Sprite addFrame(Bitmap source) {
+        if (recycled || (spritesAvailable >= frames)) return null;
+
         Sheet sheet = null;
         Rect area = null;
         if (sheets.size() > 0) {
@@ -239,25 +418,45 @@ public class SpriteSheet {
             area = sheet.nextSprite();
         }
         if (area == null) {
-            sheet = new Sheet();
+            sheet = new Sheet(createSheetBitmap(frames - spritesAvailable));
             sheets.add(sheet);
             area = sheet.nextSprite();
         }
 
-        Canvas canvas = new Canvas(sheet.getBitmap());
-        Paint paint = new Paint();
-        paint.setFilterBitmap(true);
-        paint.setDither(true);
-        paint.setAntiAlias(true);
-        canvas.drawBitmap(source, new Rect(0, 0, source.getWidth(), source.getHeight()), area, paint);
-
         Sprite sprite = new Sprite(sheet, area);
-        sprites.add(sprite);
+        sprites[spritesAvailable] = sprite;
+
+        // null source: blank frame, sheets start out transparent
+        if (source != null) {
+            Canvas canvas = new Canvas(sheet.getBitmap());
+            Paint paint = new Paint();
+            paint.setFilterBitmap(true);
+            paint.setDither(true);
+            paint.setAntiAlias(true);
+            canvas.drawBitmap(source, new Rect(0, 0, source.getWidth(), source.getHeight()), area, paint);
+        }
+
+        spritesAvailable++; // publish
         return sprite;
     }
 
-    private void setBlackFrame(Bitmap source) {
-        blackFrame = source;
+    private Bitmap createSheetBitmap(int count) {
+        // The animation is white on transparent and tinted at draw time, so alpha is all we need
+        int cols = Math.max(1, Math.min(count, SHEET_DIM / width));
+        int rows = Math.max(1, Math.min((count + cols - 1) / cols, SHEET_DIM / height));
+        return Bitmap.createBitmap(cols * width, rows * height, Bitmap.Config.ALPHA_8);
+    }
+
+    private void setBlackFrame(BlackFrame source) {
+        Bitmap bitmap = source.toBitmap();
+        synchronized (this) {
+            if (recycled) {
+                bitmap.recycle();
+                return;
+            }
+            blackFrameSpans = source;
+            blackFrame = bitmap;
+        }
     }
 
     public int getWidth() {
@@ -276,37 +475,99 @@ public class SpriteSheet {
         return frameRate;
     }
 
+    public int getFramesAvailable() {
+        return spritesAvailable;
+    }
+
+    public boolean isComplete() {
+        return spritesAvailable == frames;
+    }
+
     public Sprite getFrame(int index) {
-        if (index < sprites.size()) {
-            return sprites.get(index);
+        if ((index >= 0) && (index < spritesAvailable)) {
+            return sprites[index];
         }
         return null;
     }
 
+    /**
+     * ALPHA_8 mask, draw with a black paint
+     */
     public Bitmap getBlackFrame() {
         return blackFrame;
     }
 
+    BlackFrame getBlackFrameSpans() {
+        return blackFrameSpans;
+    }
+
+    public synchronized Bitmap getHardwareBlackFrame() {
+        if ((hardwareBlackFrame == null) && !recycled && (blackFrame != null)) {
+            hardwareBlackFrame = blackFrame.copy(Bitmap.Config.HARDWARE, false);
+        }
+        return hardwareBlackFrame != null ? hardwareBlackFrame : blackFrame;
+    }
+
+    synchronized List<Bitmap> getSheetBitmaps() {
+        List<Bitmap> ret = new ArrayList<>();
+        for (Sheet sheet : sheets) {
+            ret.add(sheet.getBitmap());
+        }
+        return ret;
+    }
+
     public boolean isValid() {
-        return (sprites.size() == frames) && (blackFrame != null);
+        return !recycled && isComplete() && (blackFrame != null);
+    }
+
+    public boolean isRecycled() {
+        return recycled;
+    }
+
+    /**
+     * Adds a reference, returns null if already recycled
+     */
+    public SpriteSheet retain() {
+        return SpriteSheetPool.getInstance().retain(this);
     }
 
-    public void recycle() {
+    /**
+     * Drops a reference, the sheet is recycled or kept idle in the pool when it was the last one
+     */
+    public void release() {
+        SpriteSheetPool.getInstance().release(this);
+    }
+
+    /**
+     * Bytes held by the sheet and black frame bitmaps, hardware copies not included
+     */
+    public synchronized long getByteCount() {
+        if (recycled) return 0;
+        long ret = 0;
         for (Sheet sheet : sheets) {
-            Bitmap bitmap = sheet.getBitmap();
-            if ((bitmap != null) && !bitmap.isRecycled()) {
-                bitmap.recycle();
-            }
+            ret += sheet.getBitmap().getAllocationByteCount();
         }
         if (blackFrame != null) {
-            blackFrame.recycle();
-            blackFrame = null;
+            ret += blackFrame.getAllocationByteCount();
         }
+        return ret;
     }
 
-    @Override
-    protected void finalize() throws Throwable {
-        recycle();
-        super.finalize();
+    /**
+     * Recycles immediately regardless of references, prefer release()
+     */
+    public synchronized void recycle() {
+        recycled = true;
+        for (Sheet sheet : sheets) {
+            sheet.recycle();
+        }
+        if (blackFrame != null) {
+            blackFrame.recycle();
+            blackFrame = null;
+        }
+        if (hardwareBlackFrame != null) {
+            hardwareBlackFrame.recycle();
+            hardwareBlackFrame = null;
+        }
     }
 }
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2019-2021 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.chainfire.holeylight.animation;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import eu.chainfire.holeylight.BuildConfig;
+import eu.chainfire.holeylight.misc.Slog;
+
+/*
+    On-disk cache of rendered sprite sheets, so we don't have to run every frame through Lottie
+    again after a boot, resolution change or re-tune.
+
+    File layout (native byte order, so the pixel data can be copied straight from the mapping):
+
+        int     magic
+        int     version
+        int     width, height, frames, frameRate
+        int     sheetCount
+        int[2]  sheet bitmap width, height (sheetCount times)
+        int[2]  black frame width, height
+        int[]   black frame spans, start and end per supersampled scanline
+        ...     raw ALPHA_8 pixels of each sheet
+ */
+@SuppressWarnings({ "WeakerAccess", "UnusedReturnValue" })
+public class SpriteSheetCache {
+    private static final String TAG = "SpriteSheetCache";
+
+    private static final int MAGIC = 0x484C5353; // HLSS
+    private static final int VERSION = 2;
+    private static final String DIRECTORY = "spritesheets";
+    private static final String EXTENSION = ".sheet";
+    private static final long MAX_CACHE_BYTES = 48L * 1024L * 1024L;
+
+    private static SpriteSheetCache instance;
+    public static SpriteSheetCache getInstance(Context context) {
+        synchronized (SpriteSheetCache.class) {
+            if (instance == null) {
+                instance = new SpriteSheetCache(context.getApplicationContext());
+            }
+            return instance;
+        }
+    }
+
+    public static String hash(String json) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] bytes = digest.digest(json.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : bytes) {
+                sb.append(String.format(Locale.ENGLISH, "%02x", b & 0xFF));
+            }
+            return sb.toString();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private final File directory;
+
+    private SpriteSheetCache(Context context) {
+        directory = new File(context.getCacheDir(), DIRECTORY);
+    }
+
+    private File getFile(String jsonHash, int width, int height, SpritePlayer.Mode mode) {
+        // version code included as rendering may differ between builds
+        return new File(directory, String.format(Locale.ENGLISH, "%s_%dx%d_%s_%d%s", jsonHash, width, height, mode.name().toLowerCase(Locale.ENGLISH), BuildConfig.VERSION_CODE, EXTENSION));
+    }
+
+    public SpriteSheet load(String jsonHash, int width, int height, SpritePlayer.Mode mode) {
+        if (jsonHash == null) return null;
+        File file = getFile(jsonHash, width, height, mode);
+        if (!file.exists()) return null;
+
+        List<Bitmap> bitmaps = new ArrayList<>();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.nativeOrder());
+
+            if ((buffer.getInt() != MAGIC) || (buffer.getInt() != VERSION)) throw new IllegalStateException("header mismatch");
+            int ssWidth = buffer.getInt();
+            int ssHeight = buffer.getInt();
+            int frames = buffer.getInt();
+            int frameRate = buffer.getInt();
+            if ((ssWidth != width) || (ssHeight != height)) throw new IllegalStateException("dimension mismatch");
+
+            int[] dims = new int[buffer.getInt() * 2];
+            for (int i = 0; i < dims.length; i++) {
+                dims[i] = buffer.getInt();
+            }
+
+            int blackWidth = buffer.getInt();
+            int blackHeight = buffer.getInt();
+            int[] spans = new int[blackHeight * SpriteSheet.BlackFrame.SCALE * 2];
+            buffer.asIntBuffer().get(spans);
+            buffer.position(buffer.position() + spans.length * 4);
+            SpriteSheet.BlackFrame blackFrame = new SpriteSheet.BlackFrame(blackWidth, blackHeight, spans);
+
+            for (int i = 0; i < dims.length; i += 2) {
+                Bitmap bitmap = Bitmap.createBitmap(dims[i], dims[i + 1], Bitmap.Config.ALPHA_8);
+                ByteBuffer pixels = buffer.slice();
+                pixels.limit(bitmap.getByteCount());
+                bitmap.copyPixelsFromBuffer(pixels);
+                buffer.position(buffer.position() + bitmap.getByteCount());
+                bitmaps.add(bitmap);
+            }
+
+            SpriteSheet ss = SpriteSheet.fromBitmaps(width, height, frames, frameRate, bitmaps, blackFrame);
+            if (ss != null) {
+                //noinspection ResultOfMethodCallIgnored
+                file.setLastModified(System.currentTimeMillis());
+                Slog.d(TAG, "Hit %s", file.getName());
+            }
+            return ss;
+        } catch (Exception e) {
+            Slog.e(TAG, "Load %s: %s", file.getName(), e.toString());
+            for (Bitmap bitmap : bitmaps) bitmap.recycle();
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return null;
+        }
+    }
+
+    public synchronized boolean store(String jsonHash, int width, int height, SpritePlayer.Mode mode, SpriteSheet spriteSheet) {
+        if ((jsonHash == null) || (spriteSheet == null) || !spriteSheet.isValid()) return false;
+        if (!directory.exists() && !directory.mkdirs()) return false;
+
+        List<Bitmap> bitmaps = spriteSheet.getSheetBitmaps();
+        SpriteSheet.BlackFrame blackFrame = spriteSheet.getBlackFrameSpans();
+        if (blackFrame == null) return false;
+        int[] spans = blackFrame.getSpans();
+
+        File file = getFile(jsonHash, width, height, mode);
+        File tmp = new File(directory, file.getName() + ".tmp");
+        try {
+            try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+                FileChannel channel = raf.getChannel();
+                channel.truncate(0);
+
+                ByteBuffer header = ByteBuffer.allocate((9 + bitmaps.size() * 2 + spans.length) * 4);
+                header.order(ByteOrder.nativeOrder());
+                header.putInt(MAGIC);
+                header.putInt(VERSION);
+                header.putInt(spriteSheet.getWidth());
+                header.putInt(spriteSheet.getHeight());
+                header.putInt(spriteSheet.getFrames());
+                header.putInt(spriteSheet.getFrameRate());
+                header.putInt(bitmaps.size());
+                for (Bitmap bitmap : bitmaps) {
+                    header.putInt(bitmap.getWidth());
+                    header.putInt(bitmap.getHeight());
+                }
+                header.putInt(blackFrame.getWidth());
+                header.putInt(blackFrame.getHeight());
+                for (int span : spans) {
+                    header.putInt(span);
+                }
+                header.flip();
+                while (header.hasRemaining()) channel.write(header);
+
+                for (Bitmap bitmap : bitmaps) {
+                    if (bitmap.isRecycled() || (bitmap.getConfig() != Bitmap.Config.ALPHA_8)) throw new IllegalStateException("unsupported bitmap");
+                    ByteBuffer pixels = ByteBuffer.allocateDirect(bitmap.getByteCount());
+                    bitmap.copyPixelsToBuffer(pixels);
+                    pixels.flip();
+                    while (pixels.hasRemaining()) channel.write(pixels);
+                }
+            }
+            if (!tmp.renameTo(file)) throw new IllegalStateException("rename failed");
+            Slog.d(TAG, "Stored %s", file.getName());
+        } catch (Exception e) {
+            Slog.e(TAG, "Store %s: %s", file.getName(), e.toString());
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            return false;
+        }
+
+        trim();
+        return true;
+    }
+
+    public synchronized void trim() {
+        File[] files = directory.listFiles();
+        if (files == null) return;
+
+        // least recently used first
+        Arrays.sort(files, (o1, o2) -> Long.compare(o1.lastModified(), o2.lastModified()));
+
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        for (File file : files) {
+            if (total <= MAX_CACHE_BYTES) break;
+            long length = file.length();
+            if (file.delete()) {
+                Slog.d(TAG, "Evicted %s", file.getName());
+                total -= length;
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2019-2021 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.chainfire.holeylight.animation;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import eu.chainfire.holeylight.misc.Slog;
+
+/*
+    Process-wide pool of sprite sheets, shared by every SpritePlayer and NotificationAnimation.
+
+    Every SpriteSheet starts out with a single reference owned by whoever created it. Users that
+    hold on to a sheet retain() it and release() it when done; when the last reference goes the
+    sheet either stays in the pool as idle (if it's pooled and fits within MAX_BYTES) or is
+    recycled right away. Idle sheets are evicted least recently used first, sheets that are
+    referenced are never recycled, so the cap only bounds what we keep around speculatively.
+
+    All reference counts are guarded by the pool's lock.
+ */
+@SuppressWarnings({ "WeakerAccess", "UnusedReturnValue" })
+public class SpriteSheetPool {
+    private static final String TAG = "SpriteSheetPool";
+
+    private static final long MAX_BYTES = 16L * 1024L * 1024L;
+
+    private static SpriteSheetPool instance;
+    public static SpriteSheetPool getInstance() {
+        synchronized (SpriteSheetPool.class) {
+            if (instance == null) {
+                instance = new SpriteSheetPool();
+            }
+            return instance;
+        }
+    }
+
+    public static String key(String jsonHash, int width, int height, SpritePlayer.Mode mode) {
+        if (jsonHash == null) return null;
+        return String.format(Locale.ENGLISH, "%s_%dx%d_%s", jsonHash, width, height, mode.name());
+    }
+
+    public static class Occupancy {
+        public final int sheets;
+        public final int referenced;
+        public final int references;
+        public final long bytes;
+        public final long idleBytes;
+        public final long maxBytes;
+
+        private Occupancy(int sheets, int referenced, int references, long bytes, long idleBytes, long maxBytes) {
+            this.sheets = sheets;
+            this.referenced = referenced;
+            this.references = references;
+            this.bytes = bytes;
+            this.idleBytes = idleBytes;
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH, "sheets:%d referenced:%d references:%d bytes:%dK idle:%dK max:%dK", sheets, referenced, references, bytes / 1024, idleBytes / 1024, maxBytes / 1024);
+        }
+    }
+
+    private final Map<String, SpriteSheet> sheets = new LinkedHashMap<>(16, 0.75f, true); // least recently used first
+
+    private SpriteSheetPool() {
+    }
+
+    /**
+     * Returns a retained sheet for key, or null if not pooled
+     */
+    public synchronized SpriteSheet acquire(String key) {
+        if (key == null) return null;
+        SpriteSheet spriteSheet = sheets.get(key);
+        if (spriteSheet == null) return null;
+        if (!spriteSheet.isValid()) {
+            sheets.remove(key);
+            return null;
+        }
+        spriteSheet.references++;
+        return spriteSheet;
+    }
+
+    /**
+     * Adds a newly created sheet to the pool, taking over the caller's reference. If another
+     * user pooled a sheet for the same key in the meantime, the passed sheet is released and
+     * the pooled one is returned instead. Returns a retained sheet.
+     */
+    public synchronized SpriteSheet put(String key, SpriteSheet spriteSheet) {
+        if ((key == null) || (spriteSheet == null)) return spriteSheet;
+
+        SpriteSheet existing = acquire(key);
+        if ((existing != null) && (existing != spriteSheet)) {
+            release(spriteSheet);
+            return existing;
+        } else if (existing == spriteSheet) {
+            spriteSheet.references--;
+            return spriteSheet;
+        }
+
+        sheets.put(key, spriteSheet);
+        trim();
+        Slog.d(TAG, "Put %s %s", key, getOccupancy());
+        return spriteSheet;
+    }
+
+    public synchronized SpriteSheet retain(SpriteSheet spriteSheet) {
+        if ((spriteSheet == null) || spriteSheet.isRecycled()) return null;
+        spriteSheet.references++;
+        return spriteSheet;
+    }
+
+    public synchronized void release(SpriteSheet spriteSheet) {
+        if ((spriteSheet == null) || spriteSheet.isRecycled()) return;
+        if (spriteSheet.references <= 0) {
+            Slog.e(TAG, "Release of unreferenced sheet");
+            return;
+        }
+        spriteSheet.references--;
+        if (spriteSheet.references > 0) return;
+
+        if (sheets.containsValue(spriteSheet)) {
+            trim();
+        } else {
+            spriteSheet.recycle();
+        }
+    }
+
+    private void trim() {
+        long total = 0;
+        for (SpriteSheet spriteSheet : sheets.values()) {
+            total += spriteSheet.getByteCount();
+        }
+        Iterator<Map.Entry<String, SpriteSheet>> iterator = sheets.entrySet().iterator();
+        while ((total > MAX_BYTES) && iterator.hasNext()) {
+            Map.Entry<String, SpriteSheet> entry = iterator.next();
+            SpriteSheet spriteSheet = entry.getValue();
+            if (spriteSheet.references > 0) continue;
+            total -= spriteSheet.getByteCount();
+            spriteSheet.recycle();
+            iterator.remove();
+            Slog.d(TAG, "Evicted %s", entry.getKey());
+        }
+    }
+
+    /**
+     * Recycles all sheets nobody is using
+     */
+    public synchronized void trimIdle() {
+        Iterator<SpriteSheet> iterator = sheets.values().iterator();
+        while (iterator.hasNext()) {
+            SpriteSheet spriteSheet = iterator.next();
+            if (spriteSheet.references > 0) continue;
+            spriteSheet.recycle();
+            iterator.remove();
+        }
+    }
+
+    public synchronized Occupancy getOccupancy() {
+        int referenced = 0;
+        int references = 0;
+        long bytes = 0;
+        long idleBytes = 0;
+        for (SpriteSheet spriteSheet : sheets.values()) {
+            long size = spriteSheet.getByteCount();
+            bytes += size;
+            if (spriteSheet.references > 0) {
+                referenced++;
+                references += spriteSheet.references;
+            } else {
+                idleBytes += size;
+            }
+        }
+        return new Occupancy(sheets.size(), referenced, references, bytes, idleBytes, MAX_BYTES);
+    }
+}
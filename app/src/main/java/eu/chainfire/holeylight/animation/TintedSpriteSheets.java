@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2019-2021 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.chainfire.holeylight.animation;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import eu.chainfire.holeylight.misc.Slog;
+
+/*
+    Multi-color playback normally draws the white sprite and then blends one arc per color over
+    it, every frame. This keeps copies of a sprite sheet with the color wedges baked in, so every
+    frame is a single blit.
+
+    Rotation is quantized into a few buckets per burn-in cycle, every bucket is a separate
+    variant. Variants are allocated and baked in full on the loader handler; until the wanted
+    one is complete the previous variant of the same sheet and colors keeps being used, or the
+    caller composites the regular way. Shares SpritePlayer's lock, getFrame() is called from
+    renderFrame() and never allocates or bakes.
+ */
+@SuppressWarnings({ "WeakerAccess" })
+public class TintedSpriteSheets {
+    private static final String TAG = "TintedSpriteSheets";
+
+    // a bucket lasts 50 seconds of the 10 minute burn-in cycle, baking one takes milliseconds
+    public static final int ROTATION_BUCKETS = 12; // 30 degrees
+    public static final float DEGREES_PER_BUCKET = 360f / ROTATION_BUCKETS;
+
+    private static final int MAX_VARIANTS = 3;
+    private static final long MAX_BYTES = 32L * 1024L * 1024L;
+
+    public static int getRotationBucket(float startAngle) {
+        int bucket = (int)Math.floor(startAngle / DEGREES_PER_BUCKET) % ROTATION_BUCKETS;
+        return bucket < 0 ? bucket + ROTATION_BUCKETS : bucket;
+    }
+
+    private static class Variant {
+        private final SpriteSheet spriteSheet;
+        private final int[] colors;
+        private final int bucket;
+        private final Rect arcArea;
+        private final Map<Bitmap, Bitmap> bitmaps = new IdentityHashMap<>();
+        private long bytes = 0;
+
+        private Variant(SpriteSheet spriteSheet, int[] colors, int bucket, Rect arcArea) {
+            this.spriteSheet = spriteSheet;
+            this.colors = colors;
+            this.bucket = bucket;
+            this.arcArea = arcArea;
+        }
+
+        private boolean matches(SpriteSheet spriteSheet, int[] colors, Rect arcArea) {
+            return (this.spriteSheet == spriteSheet) && this.arcArea.equals(arcArea) && Arrays.equals(this.colors, colors);
+        }
+
+        private boolean matches(SpriteSheet spriteSheet, int[] colors, int bucket, Rect arcArea) {
+            return (this.bucket == bucket) && matches(spriteSheet, colors, arcArea);
+        }
+
+        private Bitmap getFrame(SpriteSheet.Sprite sprite) {
+            return bitmaps.get(sprite.getBitmap());
+        }
+
+        private void recycle() {
+            for (Bitmap bitmap : bitmaps.values()) {
+                bitmap.recycle();
+            }
+            bitmaps.clear();
+            bytes = 0;
+        }
+    }
+
+    private final Object sync;
+    private final Handler handler;
+    private final List<Variant> variants = new ArrayList<>(); // least recently used first, all complete
+    private final Paint paint = new Paint();
+    private final PorterDuffXfermode xfermodeSrcAtop = new PorterDuffXfermode(PorterDuff.Mode.SRC_ATOP);
+    private final Runnable build = this::build;
+    private Variant current = null;
+
+    // next variant to build, and the one currently building
+    private SpriteSheet requestSpriteSheet = null;
+    private int[] requestColors = null;
+    private int requestBucket = -1;
+    private final Rect requestArcArea = new Rect();
+    private Variant building = null;
+    private int generation = 0;
+
+    /**
+     * @param sync Lock held by the caller around getFrame() and while drawing its result
+     * @param handler Handler variants are baked on
+     */
+    public TintedSpriteSheets(Object sync, Handler handler) {
+        this.sync = sync;
+        this.handler = handler;
+        paint.setAntiAlias(true);
+        paint.setFilterBitmap(true);
+        paint.setDither(true);
+    }
+
+    /**
+     * Returns the bitmap holding the pre-tinted version of sprite, to be drawn from sprite.getArea(),
+     * or null if it can't be provided and the caller should composite the regular way. The
+     * returned bitmap may be of a previous bucket while the requested one is being baked.
+     */
+    public Bitmap getFrame(SpriteSheet spriteSheet, SpriteSheet.Sprite sprite, int[] colors, int bucket, Rect arcArea) {
+        synchronized (sync) {
+            if ((colors == null) || (colors.length < 2) || spriteSheet.isRecycled() || !spriteSheet.isComplete()) return null;
+
+            if ((current == null) || !current.matches(spriteSheet, colors, bucket, arcArea)) {
+                // indexed loops, this runs on every bucket change and must not allocate
+                Variant found = null;
+                Variant fallback = null;
+                for (int i = variants.size() - 1; i >= 0; i--) {
+                    Variant variant = variants.get(i);
+                    if (variant.spriteSheet.isRecycled()) {
+                        variant.recycle();
+                        variants.remove(i);
+                        if (variant == current) current = null;
+                    } else if (variant.matches(spriteSheet, colors, bucket, arcArea)) {
+                        found = variant;
+                    } else if ((fallback == null) && variant.matches(spriteSheet, colors, arcArea)) {
+                        fallback = variant;
+                    }
+                }
+                if (found != null) {
+                    current = found;
+                    variants.remove(found);
+                    variants.add(found);
+                } else {
+                    request(spriteSheet, colors, bucket, arcArea);
+                    if ((current == null) || !current.matches(spriteSheet, colors, arcArea)) {
+                        current = fallback;
+                    }
+                    if (current == null) return null;
+                }
+            }
+
+            return current.getFrame(sprite);
+        }
+    }
+
+    private void request(SpriteSheet spriteSheet, int[] colors, int bucket, Rect arcArea) {
+        if ((building != null) && building.matches(spriteSheet, colors, bucket, arcArea)) return;
+        if ((requestSpriteSheet == spriteSheet) && (requestBucket == bucket) && requestArcArea.equals(arcArea) && Arrays.equals(requestColors, colors)) return;
+        requestSpriteSheet = spriteSheet;
+        requestColors = colors;
+        requestBucket = bucket;
+        requestArcArea.set(arcArea);
+        handler.removeCallbacks(build);
+        handler.post(build);
+    }
+
+    private void build() {
+        Variant variant;
+        int buildGeneration;
+        long size = 0;
+        List<Bitmap> sources = new ArrayList<>();
+        synchronized (sync) {
+            if (requestSpriteSheet == null) return;
+            SpriteSheet spriteSheet = requestSpriteSheet.retain();
+            requestSpriteSheet = null;
+            if (spriteSheet == null) return;
+            variant = new Variant(spriteSheet, Arrays.copyOf(requestColors, requestColors.length), requestBucket, new Rect(requestArcArea));
+            for (int i = 0; i < spriteSheet.getFrames(); i++) {
+                Bitmap source = spriteSheet.getFrame(i).getBitmap();
+                if (!sources.contains(source)) {
+                    // source sheets are alpha-only, our copies are full color
+                    sources.add(source);
+                    size += (long)source.getWidth() * source.getHeight() * 4;
+                }
+            }
+            if (!reserve(size)) {
+                spriteSheet.release();
+                return;
+            }
+            building = variant;
+            buildGeneration = generation;
+        }
+
+        // the sheet is retained, so its bitmaps can't be recycled while we bake
+        long start = System.nanoTime();
+        try {
+            Map<Bitmap, Canvas> canvases = new IdentityHashMap<>();
+            for (Bitmap source : sources) {
+                Bitmap target = Bitmap.createBitmap(source.getWidth(), source.getHeight(), Bitmap.Config.ARGB_8888);
+                variant.bitmaps.put(source, target);
+                canvases.put(source, new Canvas(target));
+            }
+            variant.bytes = size;
+            for (int i = 0; i < variant.spriteSheet.getFrames(); i++) {
+                SpriteSheet.Sprite sprite = variant.spriteSheet.getFrame(i);
+                bake(variant, canvases.get(sprite.getBitmap()), sprite.getBitmap(), sprite.getArea());
+            }
+        } finally {
+            variant.spriteSheet.release();
+        }
+
+        synchronized (sync) {
+            building = null;
+            if ((buildGeneration != generation) || variant.spriteSheet.isRecycled()) {
+                variant.recycle();
+                return;
+            }
+            variants.add(variant);
+            while (variants.size() > MAX_VARIANTS) {
+                Variant evict = variants.remove(0);
+                if (evict == current) current = null;
+                evict.recycle();
+            }
+        }
+        Slog.d(TAG, "Variant colors:%d bucket:%d %.3fms", variant.colors.length, variant.bucket, (System.nanoTime() - start) / 1000000.0);
+    }
+
+    private void bake(Variant variant, Canvas canvas, Bitmap source, Rect area) {
+        canvas.save();
+        canvas.clipRect(area);
+        canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+
+        paint.setXfermode(null);
+        paint.setColor(Color.WHITE);
+        canvas.drawBitmap(source, area, area, paint);
+
+        // same wedges as SpritePlayer's multi-color path, relative to the frame
+        canvas.translate(area.left, area.top);
+        paint.setXfermode(xfermodeSrcAtop);
+        Rect arcArea = variant.arcArea;
+        float startAngle = variant.bucket * DEGREES_PER_BUCKET;
+        float anglePerColor = 360f / variant.colors.length;
+        for (int i = 0; i < variant.colors.length; i++) {
+            paint.setColor(variant.colors[i]);
+            canvas.drawArc(arcArea.left, arcArea.top, arcArea.right, arcArea.bottom, startAngle + 270 + (anglePerColor * i), anglePerColor, true, paint);
+        }
+        paint.setXfermode(null);
+        canvas.restore();
+    }
+
+    // call holding sync, evicts the least recently used variants other than the current one
+    private boolean reserve(long size) {
+        long total = 0;
+        for (int i = 0; i < variants.size(); i++) {
+            total += variants.get(i).bytes;
+        }
+        for (int i = 0; (total + size > MAX_BYTES) && (i < variants.size()); ) {
+            Variant variant = variants.get(i);
+            if (variant == current) {
+                i++;
+                continue;
+            }
+            total -= variant.bytes;
+            variant.recycle();
+            variants.remove(i);
+        }
+        return total + size <= MAX_BYTES;
+    }
+
+    public void clear() {
+        synchronized (sync) {
+            for (Variant variant : variants) {
+                variant.recycle();
+            }
+            variants.clear();
+            current = null;
+            requestSpriteSheet = null;
+            handler.removeCallbacks(build);
+            // a variant being built is dropped when done
+            generation++;
+        }
+    }
+}
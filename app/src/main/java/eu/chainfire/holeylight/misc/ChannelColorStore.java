@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2019-2021 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.chainfire.holeylight.misc;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import eu.chainfire.holeylight.BuildConfig;
+
+/*
+    Per package and channel colors. These used to be individual SharedPreferences keys, which
+    meant the listener rewrote the entire preferences XML every time it saw a new channel.
+
+    Everything is kept in memory, keyed the same way the preferences were. Changes are written
+    to a small binary file from a background thread, batched unless written immediately.
+
+    File layout:
+
+        int     magic
+        int     version
+        int     count
+        ...     package (UTF), channel (UTF), conversation (boolean), color (int), count times
+ */
+@SuppressWarnings({ "WeakerAccess", "UnusedReturnValue" })
+public class ChannelColorStore {
+    private static final String TAG = "ChannelColorStore";
+
+    private static final int MAGIC = 0x484C4343; // HLCC
+    private static final int VERSION = 1;
+    private static final String FILE = "channel_colors";
+    private static final int WRITE_DELAY = 2000;
+
+    private static ChannelColorStore instance;
+    public static ChannelColorStore getInstance(Context context) {
+        synchronized (ChannelColorStore.class) {
+            if (instance == null) {
+                instance = new ChannelColorStore(context.getApplicationContext());
+            }
+            return instance;
+        }
+    }
+
+    public static String key(String packageName, String channelName, boolean conversation) {
+        return (conversation ? Settings.CHANNEL_COLOR_CONVERSATION : Settings.CHANNEL_COLOR) + packageName + ":" + channelName;
+    }
+
+    private final File file;
+    private final Map<String, Settings.PackageColor> colors = new HashMap<>();
+    private final Object writeLock = new Object();
+    private final Handler handler;
+    private final Runnable runWrite = this::write;
+    private boolean dirty = false;
+
+    private ChannelColorStore(Context context) {
+        file = new File(context.getFilesDir(), FILE);
+        HandlerThread handlerThread = new HandlerThread(BuildConfig.APPLICATION_ID + ":colors");
+        handlerThread.start();
+        handler = new Handler(handlerThread.getLooper());
+        load();
+    }
+
+    public boolean exists() {
+        return file.exists();
+    }
+
+    private void load() {
+        if (!file.exists()) return;
+        try (DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if ((is.readInt() != MAGIC) || (is.readInt() != VERSION)) throw new IllegalStateException("header mismatch");
+            int count = is.readInt();
+            for (int i = 0; i < count; i++) {
+                String packageName = is.readUTF();
+                String channelName = is.readUTF();
+                boolean conversation = is.readBoolean();
+                int color = is.readInt();
+                colors.put(key(packageName, channelName, conversation), new Settings.PackageColor(packageName, channelName, conversation, color));
+            }
+            Slog.d(TAG, "Loaded %d", colors.size());
+        } catch (Exception e) {
+            Slog.e(TAG, "Load: %s", e.toString());
+            colors.clear();
+        }
+    }
+
+    private void write() {
+        synchronized (writeLock) {
+            List<Settings.PackageColor> values;
+            synchronized (this) {
+                if (!dirty) return;
+                values = new ArrayList<>(colors.values());
+                dirty = false;
+            }
+
+            File tmp = new File(file.getPath() + ".tmp");
+            try {
+                try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                    os.writeInt(MAGIC);
+                    os.writeInt(VERSION);
+                    os.writeInt(values.size());
+                    for (Settings.PackageColor value : values) {
+                        os.writeUTF(value.packageName);
+                        os.writeUTF(value.channelName);
+                        os.writeBoolean(value.conversation);
+                        os.writeInt(value.color);
+                    }
+                }
+                if (!tmp.renameTo(file)) throw new IllegalStateException("rename failed");
+                Slog.d(TAG, "Stored %d", values.size());
+            } catch (Exception e) {
+                Slog.e(TAG, "Store: %s", e.toString());
+                //noinspection ResultOfMethodCallIgnored
+                tmp.delete();
+                synchronized (this) {
+                    dirty = true;
+                }
+            }
+        }
+    }
+
+    private void scheduleWrite(boolean immediately) {
+        dirty = true;
+        handler.removeCallbacks(runWrite);
+        handler.postDelayed(runWrite, immediately ? 0 : WRITE_DELAY);
+    }
+
+    /**
+     * Writes pending changes from the calling thread
+     */
+    public void flush() {
+        handler.removeCallbacks(runWrite);
+        write();
+    }
+
+    public synchronized Settings.PackageColor get(String key) {
+        return colors.get(key);
+    }
+
+    /**
+     * Returns true if the stored color changed
+     */
+    public synchronized boolean put(String packageName, String channelName, boolean conversation, int color, boolean writeImmediately) {
+        String key = key(packageName, channelName, conversation);
+        Settings.PackageColor current = colors.get(key);
+        if ((current != null) && (current.color == color)) return false;
+        colors.put(key, new Settings.PackageColor(packageName, channelName, conversation, color));
+        scheduleWrite(writeImmediately);
+        return true;
+    }
+
+    public synchronized boolean remove(String key) {
+        if (colors.remove(key) == null) return false;
+        scheduleWrite(true);
+        return true;
+    }
+
+    public synchronized void clear() {
+        if (colors.isEmpty()) return;
+        colors.clear();
+        scheduleWrite(true);
+    }
+
+    public synchronized Map<String, Settings.PackageColor> getAll() {
+        return new HashMap<>(colors);
+    }
+}
@@ -2,78 +2,418 @@ package eu.chainfire.holeylight.misc;
 
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.drawable.Drawable;
 
-import java.util.HashMap;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import eu.chainfire.holeylight.BuildConfig;
 
 public class ColorAnalyzer {
-    private static final Map<String, Integer> colorMap = new HashMap<>();
+    private static final String CACHE_FILE = "icon_colors";
+    private static final int CACHE_VERSION = 2;
+    private static final int CACHE_MAX_ENTRIES = 256;
 
-    public static int analyze(Context context, String packageName, int defaultColor) {
+    // Icons are drawn at this size for analysis, plenty to find an average color
+    public static final int ANALYZE_SIZE = 48;
+
+    public enum Extraction {
+        // Average of all pixels that aren't pure black or white
+        MEAN {
+            @Override
+            Integer extract(int[] pixels, int length) {
+                return mean(pixels, length);
+            }
+        },
+
+        // Most populated box after a median cut over a coarse RGB histogram, so multi-colored
+        // icons resolve to one of their colors rather than a blend. Falls back to MEAN for
+        // icons without any colored pixels.
+        HISTOGRAM {
+            @Override
+            Integer extract(int[] pixels, int length) {
+                Integer ret = medianCut(pixels, length);
+                return ret != null ? ret : mean(pixels, length);
+            }
+        };
+
+        abstract Integer extract(int[] pixels, int length);
+    }
+
+    private static class Entry {
+        private final long versionCode;
+        private final long lastUpdateTime;
+        private final Extraction extraction;
+        private final boolean adjust; // false for system apps
+        private final Integer color; // null if the icon had no usable pixels
+        private boolean verified;
+
+        private Entry(long versionCode, long lastUpdateTime, Extraction extraction, boolean adjust, Integer color, boolean verified) {
+            this.versionCode = versionCode;
+            this.lastUpdateTime = lastUpdateTime;
+            this.extraction = extraction;
+            this.adjust = adjust;
+            this.color = color;
+            this.verified = verified;
+        }
+
+        private boolean matches(PackageInfo info) {
+            return (versionCode == info.getLongVersionCode()) && (lastUpdateTime == info.lastUpdateTime);
+        }
+    }
+
+    // least recently used first
+    private static final Map<String, Entry> colorMap = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > CACHE_MAX_ENTRIES;
+        }
+    };
+    private static boolean loaded = false;
+
+    private static Bitmap analyzeBitmap = null;
+    private static Canvas analyzeCanvas = null;
+    private static int[] analyzePixels = null;
+
+    private static final int HISTOGRAM_BITS = 4;
+    private static final int HISTOGRAM_SIDE = 1 << HISTOGRAM_BITS;
+    private static final int HISTOGRAM_MIN_CHROMA = 24;
+    private static final int HISTOGRAM_MAX_BOXES = 8;
+    private static final int[] histogramCount = new int[HISTOGRAM_SIDE * HISTOGRAM_SIDE * HISTOGRAM_SIDE];
+    private static final int[] histogramRed = new int[histogramCount.length];
+    private static final int[] histogramGreen = new int[histogramCount.length];
+    private static final int[] histogramBlue = new int[histogramCount.length];
+    private static final int[] boxes = new int[HISTOGRAM_MAX_BOXES * 6]; // min/max r, g, b in bins
+
+    public static synchronized int analyze(Context context, String packageName, int defaultColor) {
         if ((defaultColor & 0x00FFFFFF) == 0) return defaultColor;
-        int color = defaultColor;
-        Integer cached = colorMap.get(packageName);
-        if (cached == null) {
-            boolean adjust = false;
+        load(context);
+
+        PackageManager pm = context.getPackageManager();
+        Extraction extraction = Settings.getInstance(context).getColorExtraction();
+        Entry entry = colorMap.get(packageName);
+        if ((entry != null) && (entry.extraction != extraction)) {
+            entry = null;
+        }
+        if ((entry != null) && !entry.verified) {
+            // loaded from disk, the package may have been updated while we weren't running
+            try {
+                if (entry.matches(pm.getPackageInfo(packageName, 0))) {
+                    entry.verified = true;
+                } else {
+                    entry = null;
+                }
+            } catch (Exception e) {
+                entry = null;
+            }
+        }
+
+        if (entry == null) {
             try {
-                PackageManager pm = context.getPackageManager();
-                ApplicationInfo info = pm.getApplicationInfo(packageName, 0);
+                PackageInfo packageInfo = pm.getPackageInfo(packageName, 0);
+                ApplicationInfo info = packageInfo.applicationInfo;
+                boolean adjust = false;
+                Integer color = null;
                 if (!packageName.equals(BuildConfig.APPLICATION_ID) && (info.flags & (ApplicationInfo.FLAG_SYSTEM | ApplicationInfo.FLAG_UPDATED_SYSTEM_APP)) == 0) {
                     // Average color from icon
                     adjust = true;
-                    Drawable icon = info.loadIcon(pm);
-                    Bitmap bitmap = Bitmap.createBitmap(icon.getIntrinsicWidth(), icon.getIntrinsicHeight(), Bitmap.Config.ARGB_8888);
-                    try {
-                        Canvas canvas = new Canvas(bitmap);
-                        canvas.drawColor(0xFFFFFFFF);
-                        icon.setBounds(0, 0, bitmap.getWidth(), bitmap.getHeight());
-                        icon.draw(canvas);
-                        long[] channels = new long[3];
-                        int counter = 0;
-                        int[] pixels = new int[bitmap.getWidth() * bitmap.getHeight()];
-                        bitmap.getPixels(pixels, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
-                        for (int i = 0; i < pixels.length; i++) {
-                            int c = pixels[i] & 0x00FFFFFF;
-                            if (c > 0 && c < 0xFFFFFF) {
-                                channels[0] += (c & 0xFF0000) >> 16;
-                                channels[1] += (c & 0x00FF00) >> 8;
-                                channels[2] += (c & 0x0000FF);
-                                counter++;
-                            }
-                        }
-                        if (counter > 0) {
-                            color = (
-                                    (int)(Math.max(Math.min(channels[0] / counter, 255), 0) << 16) |
-                                    (int)(Math.max(Math.min(channels[1] / counter, 255), 0) << 8) |
-                                    (int)(Math.max(Math.min(channels[2] / counter, 255), 0))
-                            );
-                        }
-                    } finally {
-                        bitmap.recycle();
-                    }
+                    color = extract(info.loadIcon(pm), extraction);
                 }
+                entry = new Entry(packageInfo.getLongVersionCode(), packageInfo.lastUpdateTime, extraction, adjust, color, true);
             } catch (Exception e) {
                 e.printStackTrace();
+                return defaultColor;
+            }
+            colorMap.put(packageName, entry);
+            save(context);
+        }
+
+        if (!entry.adjust) return defaultColor;
+
+        // Maximize saturation and brightness
+        float[] hsv = new float[3];
+        Color.colorToHSV(entry.color != null ? entry.color : defaultColor, hsv);
+        hsv[1] = 1.0f;
+        hsv[2] = 1.0f;
+        return Color.HSVToColor(255, hsv);
+    }
+
+    private static Integer extract(Drawable icon, Extraction extraction) {
+        if (analyzeBitmap == null) {
+            analyzeBitmap = Bitmap.createBitmap(ANALYZE_SIZE, ANALYZE_SIZE, Bitmap.Config.ARGB_8888);
+            analyzeCanvas = new Canvas(analyzeBitmap);
+            analyzePixels = new int[ANALYZE_SIZE * ANALYZE_SIZE];
+        }
+        draw(icon, analyzeBitmap, analyzeCanvas, analyzePixels);
+        return extraction.extract(analyzePixels, analyzePixels.length);
+    }
+
+    private static void draw(Drawable icon, Bitmap bitmap, Canvas canvas, int[] pixels) {
+        canvas.drawColor(0xFFFFFFFF);
+        icon.setBounds(0, 0, bitmap.getWidth(), bitmap.getHeight());
+        icon.draw(canvas);
+        bitmap.getPixels(pixels, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+    }
+
+    /**
+     * Color extracted from icon drawn at size x size, before saturation and brightness are
+     * maximized. For benchmarking.
+     */
+    public static synchronized Integer test_extract(Drawable icon, Extraction extraction, int size) {
+        Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        try {
+            int[] pixels = new int[size * size];
+            draw(icon, bitmap, new Canvas(bitmap), pixels);
+            return extraction.extract(pixels, pixels.length);
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    private static Integer mean(int[] pixels, int length) {
+        long[] channels = new long[3];
+        int counter = 0;
+        for (int i = 0; i < length; i++) {
+            int c = pixels[i] & 0x00FFFFFF;
+            if (c > 0 && c < 0xFFFFFF) {
+                channels[0] += (c & 0xFF0000) >> 16;
+                channels[1] += (c & 0x00FF00) >> 8;
+                channels[2] += (c & 0x0000FF);
+                counter++;
             }
+        }
+        if (counter == 0) return null;
+        return (
+                (int)(Math.max(Math.min(channels[0] / counter, 255), 0) << 16) |
+                (int)(Math.max(Math.min(channels[1] / counter, 255), 0) << 8) |
+                (int)(Math.max(Math.min(channels[2] / counter, 255), 0))
+        );
+    }
+
+    private static int histogramIndex(int r, int g, int b) {
+        return (r << (HISTOGRAM_BITS * 2)) | (g << HISTOGRAM_BITS) | b;
+    }
+
+    private static Integer medianCut(int[] pixels, int length) {
+        Arrays.fill(histogramCount, 0);
+        Arrays.fill(histogramRed, 0);
+        Arrays.fill(histogramGreen, 0);
+        Arrays.fill(histogramBlue, 0);
 
-            if (adjust) {
-                // Maximize saturation and brightness
-                float[] hsv = new float[3];
-                Color.colorToHSV(color, hsv);
-                hsv[1] = 1.0f;
-                hsv[2] = 1.0f;
-                color = Color.HSVToColor(255, hsv);
+        int shift = 8 - HISTOGRAM_BITS;
+        int colored = 0;
+        for (int i = 0; i < length; i++) {
+            int c = pixels[i];
+            int r = (c >> 16) & 0xFF;
+            int g = (c >> 8) & 0xFF;
+            int b = c & 0xFF;
+            // grays carry no hue, and would be maximized to white anyway
+            int max = Math.max(r, Math.max(g, b));
+            int min = Math.min(r, Math.min(g, b));
+            if (max - min < HISTOGRAM_MIN_CHROMA) continue;
+            int index = histogramIndex(r >> shift, g >> shift, b >> shift);
+            histogramCount[index]++;
+            histogramRed[index] += r;
+            histogramGreen[index] += g;
+            histogramBlue[index] += b;
+            colored++;
+        }
+        if (colored == 0) return null;
+
+        boxes[0] = 0; boxes[1] = HISTOGRAM_SIDE - 1;
+        boxes[2] = 0; boxes[3] = HISTOGRAM_SIDE - 1;
+        boxes[4] = 0; boxes[5] = HISTOGRAM_SIDE - 1;
+        shrinkBox(0);
+        int boxCount = 1;
+
+        while (boxCount < HISTOGRAM_MAX_BOXES) {
+            // split the most populated box that can still be split
+            int split = -1;
+            int splitPopulation = 0;
+            for (int i = 0; i < boxCount; i++) {
+                int o = i * 6;
+                if ((boxes[o] == boxes[o + 1]) && (boxes[o + 2] == boxes[o + 3]) && (boxes[o + 4] == boxes[o + 5])) continue;
+                int population = boxPopulation(i);
+                if (population > splitPopulation) {
+                    split = i;
+                    splitPopulation = population;
+                }
+            }
+            if (split < 0) break;
+
+            int o = split * 6;
+            int axis = 0;
+            int range = boxes[o + 1] - boxes[o];
+            for (int a = 1; a < 3; a++) {
+                if (boxes[o + a * 2 + 1] - boxes[o + a * 2] > range) {
+                    axis = a;
+                    range = boxes[o + a * 2 + 1] - boxes[o + a * 2];
+                }
+            }
+
+            // find the median slice along that axis
+            int lo = boxes[o + axis * 2];
+            int hi = boxes[o + axis * 2 + 1];
+            int cut = lo;
+            int accumulated = 0;
+            for (int v = lo; v < hi; v++) {
+                boxes[o + axis * 2] = v;
+                boxes[o + axis * 2 + 1] = v;
+                accumulated += boxPopulation(split);
+                cut = v;
+                if (accumulated * 2 >= splitPopulation) break;
+            }
+
+            int n = boxCount * 6;
+            System.arraycopy(boxes, o, boxes, n, 6);
+            boxes[o + axis * 2] = lo;
+            boxes[o + axis * 2 + 1] = cut;
+            boxes[n + axis * 2] = cut + 1;
+            boxes[n + axis * 2 + 1] = hi;
+            shrinkBox(split);
+            shrinkBox(boxCount);
+            boxCount++;
+        }
+
+        int best = 0;
+        int bestPopulation = -1;
+        for (int i = 0; i < boxCount; i++) {
+            int population = boxPopulation(i);
+            if (population > bestPopulation) {
+                best = i;
+                bestPopulation = population;
+            }
+        }
+
+        long r = 0, g = 0, b = 0, count = 0;
+        int o = best * 6;
+        for (int ri = boxes[o]; ri <= boxes[o + 1]; ri++) {
+            for (int gi = boxes[o + 2]; gi <= boxes[o + 3]; gi++) {
+                for (int bi = boxes[o + 4]; bi <= boxes[o + 5]; bi++) {
+                    int index = histogramIndex(ri, gi, bi);
+                    r += histogramRed[index];
+                    g += histogramGreen[index];
+                    b += histogramBlue[index];
+                    count += histogramCount[index];
+                }
+            }
+        }
+        if (count == 0) return null;
+        return (int)(((r / count) << 16) | ((g / count) << 8) | (b / count));
+    }
+
+    private static int boxPopulation(int box) {
+        int o = box * 6;
+        int ret = 0;
+        for (int ri = boxes[o]; ri <= boxes[o + 1]; ri++) {
+            for (int gi = boxes[o + 2]; gi <= boxes[o + 3]; gi++) {
+                for (int bi = boxes[o + 4]; bi <= boxes[o + 5]; bi++) {
+                    ret += histogramCount[histogramIndex(ri, gi, bi)];
+                }
+            }
+        }
+        return ret;
+    }
+
+    private static void shrinkBox(int box) {
+        // tighten the bounds to the bins actually in use
+        int o = box * 6;
+        int rMin = HISTOGRAM_SIDE, rMax = -1, gMin = HISTOGRAM_SIDE, gMax = -1, bMin = HISTOGRAM_SIDE, bMax = -1;
+        for (int ri = boxes[o]; ri <= boxes[o + 1]; ri++) {
+            for (int gi = boxes[o + 2]; gi <= boxes[o + 3]; gi++) {
+                for (int bi = boxes[o + 4]; bi <= boxes[o + 5]; bi++) {
+                    if (histogramCount[histogramIndex(ri, gi, bi)] == 0) continue;
+                    rMin = Math.min(rMin, ri); rMax = Math.max(rMax, ri);
+                    gMin = Math.min(gMin, gi); gMax = Math.max(gMax, gi);
+                    bMin = Math.min(bMin, bi); bMax = Math.max(bMax, bi);
+                }
+            }
+        }
+        if (rMax < 0) return; // empty, leave as is
+        boxes[o] = rMin; boxes[o + 1] = rMax;
+        boxes[o + 2] = gMin; boxes[o + 3] = gMax;
+        boxes[o + 4] = bMin; boxes[o + 5] = bMax;
+    }
+
+    public static synchronized void invalidate(Context context, String packageName) {
+        load(context);
+        if (colorMap.remove(packageName) != null) {
+            save(context);
+        }
+    }
+
+    public static synchronized void clear(Context context) {
+        colorMap.clear();
+        loaded = true;
+        //noinspection ResultOfMethodCallIgnored
+        getFile(context).delete();
+    }
+
+    private static File getFile(Context context) {
+        return new File(context.getFilesDir(), CACHE_FILE);
+    }
+
+    private static void load(Context context) {
+        if (loaded) return;
+        loaded = true;
+        File file = getFile(context);
+        if (!file.exists()) return;
+        try (DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (is.readInt() != CACHE_VERSION) return;
+            int count = is.readInt();
+            for (int i = 0; i < count; i++) {
+                String packageName = is.readUTF();
+                long versionCode = is.readLong();
+                long lastUpdateTime = is.readLong();
+                int extraction = is.readInt();
+                boolean adjust = is.readBoolean();
+                boolean hasColor = is.readBoolean();
+                int color = is.readInt();
+                if ((extraction < 0) || (extraction >= Extraction.values().length)) continue;
+                colorMap.put(packageName, new Entry(versionCode, lastUpdateTime, Extraction.values()[extraction], adjust, hasColor ? color : null, false));
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            colorMap.clear();
+        }
+    }
+
+    private static void save(Context context) {
+        File file = getFile(context);
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                os.writeInt(CACHE_VERSION);
+                os.writeInt(colorMap.size());
+                for (Map.Entry<String, Entry> item : colorMap.entrySet()) {
+                    Entry entry = item.getValue();
+                    os.writeUTF(item.getKey());
+                    os.writeLong(entry.versionCode);
+                    os.writeLong(entry.lastUpdateTime);
+                    os.writeInt(entry.extraction.ordinal());
+                    os.writeBoolean(entry.adjust);
+                    os.writeBoolean(entry.color != null);
+                    os.writeInt(entry.color != null ? entry.color : 0);
+                }
             }
-        } else {
-            color = cached;
+            if (!tmp.renameTo(file)) throw new IllegalStateException("rename failed");
+        } catch (Exception e) {
+            e.printStackTrace();
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
         }
-        return color;
     }
 }
@@ -63,72 +63,64 @@ public class MotionSensor {
     private static final int SAMPLING_INTERVAL_MILLIS = 40;
     private static final int ANGLE_AGE_MILLIS = 1000;
 
+    // state changes are passed on immediately, unchanged state at most this often
+    private static final long DISPATCH_INTERVAL_MILLIS = 1000;
+
     private final Object lock = new Object();
     private final Sensor accelSensor;
     private final SensorManager sensorManager;
-    private final RunningSignalStats runningStats;
+    private final Detector detector = new Detector();
     private final Handler handler;
-    private final List<Vector3> history = new ArrayList<>();
     private final List<OnMotionStateListener> listeners = new ArrayList<>();
     private boolean measurementInProgress;
-    private MotionState motionState = MotionState.UNKNOWN;
-    private long motionStateStart = 0;
+    private long lastDispatch = 0;
+    private MotionState dispatchState = MotionState.UNKNOWN;
+    private long dispatchDuration = 0;
 
     private MotionSensor(Context context) {
         handler = new Handler(Looper.getMainLooper());
         sensorManager = (SensorManager)context.getSystemService(Context.SENSOR_SERVICE);
         accelSensor = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
         measurementInProgress = false;
-        runningStats = new RunningSignalStats();
     }
 
+    private final Runnable dispatch = new Runnable() {
+        @Override
+        public void run() {
+            MotionState state;
+            long duration;
+            synchronized (lock) {
+                state = dispatchState;
+                duration = dispatchDuration;
+            }
+            // backwards, listeners may be removed while iterating
+            for (int i = listeners.size() - 1; i >= 0; i--) {
+                if (i >= listeners.size()) continue;
+                OnMotionStateListener listener = listeners.get(i);
+                if (!listener.onMotionState(state, duration)) {
+                    stop(listener);
+                }
+            }
+        }
+    };
+
     private final SensorEventListener accelListener = new SensorEventListener() {
         @Override
         public void onSensorChanged(SensorEvent event) {
             synchronized (lock) {
                 long now = SystemClock.elapsedRealtime();
 
-                if (now - runningStats.getLastReset() >= ACCELEROMETER_DATA_TIMEOUT_MILLIS) {
-                    runningStats.reset();
-                }
+                Detector.Result result = detector.onSample(now, event.values[0], event.values[1], event.values[2]);
+                if (result == Detector.Result.NONE) return;
+
+                if (Settings.DEBUG) Slog.i(TAG, "energy:%10.8f angle:%4.2f", detector.getEnergy(), detector.getAngle());
 
-                Vector3 accelDatum = new Vector3(now, event.values[0], event.values[1], event.values[2]);
-                runningStats.accumulate(accelDatum);
-                if (runningStats.getSampleCount() >= (int) Math.ceil(((double)ORIENTATION_MEASUREMENT_DURATION_MILLIS / SAMPLING_INTERVAL_MILLIS))) {
-                    Vector3 average = runningStats.getRunningAverage();
-                    float energy = runningStats.getEnergy();
-                    float angle = 0.0f;
-
-                    long cutoff = now - ANGLE_AGE_MILLIS;
-                    for (int i = history.size() - 1; i >= 0; i--) {
-                        if (history.get(i).timeMillisSinceBoot < cutoff) {
-                            history.remove(i);
-                        }
-                    }
-                    for (Vector3 historic : history) {
-                        angle = Math.max(angle, historic.angleBetween(average));
-                    }
-
-                    history.add(average);
-                    runningStats.reset();
-
-                    Slog.i(TAG, String.format(Locale.ENGLISH, "energy:%10.8f angle:%4.2f", energy, angle));
-
-                    MotionState nextState = MotionState.STATIONARY;
-                    if ((energy >= THRESHOLD_ENERGY) || (angle >= THRESHOLD_ANGLE)) {
-                        nextState = MotionState.MOVING;
-                    }
-                    if ((nextState != motionState) || (motionStateStart == 0)) {
-                        motionState = nextState;
-                        motionStateStart = now;
-                    }
-                    for (final OnMotionStateListener listener : listeners) {
-                        handler.post(() -> {
-                            if (!listener.onMotionState(motionState, now - motionStateStart)) {
-                                stop(listener);
-                            }
-                        });
-                    }
+                if ((result == Detector.Result.TRANSITION) || (now - lastDispatch >= DISPATCH_INTERVAL_MILLIS)) {
+                    lastDispatch = now;
+                    dispatchState = detector.getMotionState();
+                    dispatchDuration = now - detector.getMotionStateStart();
+                    handler.removeCallbacks(dispatch);
+                    handler.post(dispatch);
                 }
             }
         }
@@ -142,10 +134,10 @@ public class MotionSensor {
         if (!measurementInProgress) {
             if (sensorManager.registerListener(accelListener, accelSensor, SAMPLING_INTERVAL_MILLIS * 1000)) {
                 measurementInProgress = true;
-                history.clear();
-                runningStats.reset();
-                motionState = MotionState.UNKNOWN;
-                motionStateStart = SystemClock.elapsedRealtime();
+                synchronized (lock) {
+                    detector.reset(SystemClock.elapsedRealtime());
+                    lastDispatch = 0;
+                }
             }
         }
     }
@@ -154,7 +146,7 @@ public class MotionSensor {
         if (measurementInProgress) {
             measurementInProgress = false;
             sensorManager.unregisterListener(accelListener);
-            runningStats.reset();
+            handler.removeCallbacks(dispatch);
         }
     }
 
@@ -163,7 +155,9 @@ public class MotionSensor {
             listeners.add(listener);
             start();
         }
-        return motionState;
+        synchronized (lock) {
+            return detector.getMotionState();
+        }
     }
 
     public void stop(OnMotionStateListener listener) {
@@ -177,7 +171,9 @@ public class MotionSensor {
     }
 
     public void resetDuration() {
-        motionStateStart = 0;
+        synchronized (lock) {
+            detector.resetDuration();
+        }
     }
 
     public void stopAll() {
@@ -185,82 +181,120 @@ public class MotionSensor {
         stop();
     }
 
-    // From: AnyMotionDetector.Vector3
-    /**
-     * A timestamped three dimensional vector and some vector operations.
+    /*
+        The detection itself, fed timestamped accelerometer samples. Has no Android dependencies
+        so recorded traces can be replayed through it, and allocates nothing per sample: window
+        averages are kept in a fixed size float ring buffer.
      */
-    public static final class Vector3 {
-        public long timeMillisSinceBoot;
-        public float x;
-        public float y;
-        public float z;
-
-        public Vector3(long timeMillisSinceBoot, float x, float y, float z) {
-            this.timeMillisSinceBoot = timeMillisSinceBoot;
-            this.x = x;
-            this.y = y;
-            this.z = z;
-        }
-
-        public float norm() {
-            return (float) Math.sqrt(dotProduct(this));
+    public static final class Detector {
+        public enum Result { NONE, WINDOW, TRANSITION }
+
+        private static final int WINDOW_SAMPLES = (int)Math.ceil((double)ORIENTATION_MEASUREMENT_DURATION_MILLIS / SAMPLING_INTERVAL_MILLIS);
+
+        // a window completes about every ORIENTATION_MEASUREMENT_DURATION_MILLIS, room for
+        // sensors delivering faster than requested; if it fills up the oldest are dropped
+        private static final int HISTORY_SIZE = (int)(4 * ANGLE_AGE_MILLIS / ORIENTATION_MEASUREMENT_DURATION_MILLIS);
+
+        private final RunningSignalStats runningStats = new RunningSignalStats();
+        private final float[] history = new float[HISTORY_SIZE * 3];
+        private final long[] historyTime = new long[HISTORY_SIZE];
+        private int historyHead = 0;
+        private int historyCount = 0;
+        private MotionState motionState = MotionState.UNKNOWN;
+        private long motionStateStart = 0;
+        private float energy = 0f;
+        private float angle = 0f;
+
+        public Detector() {
+            reset(0);
         }
 
-        public Vector3 normalized() {
-            float mag = norm();
-            return new Vector3(timeMillisSinceBoot, x / mag, y / mag, z / mag);
+        public void reset(long now) {
+            runningStats.reset(now);
+            historyHead = 0;
+            historyCount = 0;
+            motionState = MotionState.UNKNOWN;
+            motionStateStart = now;
+            energy = 0f;
+            angle = 0f;
         }
 
         /**
-         * Returns the angle between this 3D vector and another given 3D vector.
-         * Assumes both have already been normalized.
-         *
-         * @param other The other Vector3 vector.
-         * @return angle between this vector and the other given one.
+         * Returns the angle in degrees between two 3D vectors, they don't need to be normalized.
+         * From: AnyMotionDetector.Vector3.angleBetween
          */
-        public float angleBetween(Vector3 other) {
-            Vector3 crossVector = cross(other);
-            float degrees = Math.abs((float)Math.toDegrees(
-                    Math.atan2(crossVector.norm(), dotProduct(other))));
-            if (DEBUG)
-                Slog.d(TAG, "angleBetween: this = " + this.toString() +
-                    ", other = " + other.toString() + ", degrees = " + degrees);
-            return degrees;
+        private static float angleBetween(float ax, float ay, float az, float bx, float by, float bz) {
+            float cx = ay * bz - az * by;
+            float cy = az * bx - ax * bz;
+            float cz = ax * by - ay * bx;
+            float crossNorm = (float)Math.sqrt(cx * cx + cy * cy + cz * cz);
+            float dot = ax * bx + ay * by + az * bz;
+            return Math.abs((float)Math.toDegrees(Math.atan2(crossNorm, dot)));
         }
 
-        public Vector3 cross(Vector3 v) {
-            return new Vector3(
-                v.timeMillisSinceBoot,
-                y * v.z - z * v.y,
-                z * v.x - x * v.z,
-                x * v.y - y * v.x);
+        public Result onSample(long now, float x, float y, float z) {
+            if (now - runningStats.getLastReset() >= ACCELEROMETER_DATA_TIMEOUT_MILLIS) {
+                runningStats.reset(now);
+            }
+
+            runningStats.accumulate(x, y, z);
+            if (runningStats.getSampleCount() < WINDOW_SAMPLES) return Result.NONE;
+
+            float averageX = runningStats.getAverageX();
+            float averageY = runningStats.getAverageY();
+            float averageZ = runningStats.getAverageZ();
+            energy = runningStats.getEnergy();
+            angle = 0.0f;
+
+            // oldest first, drop those that aged out
+            long cutoff = now - ANGLE_AGE_MILLIS;
+            while ((historyCount > 0) && (historyTime[(historyHead - historyCount + HISTORY_SIZE) % HISTORY_SIZE] < cutoff)) {
+                historyCount--;
+            }
+            for (int i = historyCount; i > 0; i--) {
+                int index = (historyHead - i + HISTORY_SIZE) % HISTORY_SIZE;
+                angle = Math.max(angle, angleBetween(history[index * 3], history[index * 3 + 1], history[index * 3 + 2], averageX, averageY, averageZ));
+            }
+
+            history[historyHead * 3] = averageX;
+            history[historyHead * 3 + 1] = averageY;
+            history[historyHead * 3 + 2] = averageZ;
+            historyTime[historyHead] = now;
+            historyHead = (historyHead + 1) % HISTORY_SIZE;
+            if (historyCount < HISTORY_SIZE) historyCount++;
+
+            runningStats.reset(now);
+
+            MotionState nextState = MotionState.STATIONARY;
+            if ((energy >= THRESHOLD_ENERGY) || (angle >= THRESHOLD_ANGLE)) {
+                nextState = MotionState.MOVING;
+            }
+            if ((nextState != motionState) || (motionStateStart == 0)) {
+                motionState = nextState;
+                motionStateStart = now;
+                return Result.TRANSITION;
+            }
+            return Result.WINDOW;
         }
 
-        @NonNull
-        @Override
-        public String toString() {
-            String msg = "";
-            msg += "timeMillisSinceBoot=" + timeMillisSinceBoot;
-            msg += " | x=" + x;
-            msg += ", y=" + y;
-            msg += ", z=" + z;
-            return msg;
+        public void resetDuration() {
+            motionStateStart = 0;
         }
 
-        public float dotProduct(Vector3 v) {
-            return x * v.x + y * v.y + z * v.z;
+        public MotionState getMotionState() {
+            return motionState;
         }
 
-        public Vector3 times(float val) {
-            return new Vector3(timeMillisSinceBoot, x * val, y * val, z * val);
+        public long getMotionStateStart() {
+            return motionStateStart;
         }
 
-        public Vector3 plus(Vector3 v) {
-            return new Vector3(v.timeMillisSinceBoot, x + v.x, y + v.y, z + v.z);
+        public float getEnergy() {
+            return energy;
         }
 
-        public Vector3 minus(Vector3 v) {
-            return new Vector3(v.timeMillisSinceBoot, x - v.x, y - v.y, z - v.z);
+        public float getAngle() {
+            return angle;
         }
     }
 
@@ -271,56 +305,62 @@ public class MotionSensor {
      *   <li>running average.
      *   <li>running sum-of-squared-errors as the energy of the signal derivative.
      * <ul>
+     * Updated in place, samples aren't kept.
      */
     private static class RunningSignalStats {
-        Vector3 previousVector;
-        Vector3 currentVector;
-        Vector3 runningSum;
+        float previousX;
+        float previousY;
+        float previousZ;
+        boolean havePrevious;
+        float sumX;
+        float sumY;
+        float sumZ;
         float energy;
         int sampleCount;
         long lastReset;
 
-        public RunningSignalStats() {
-            reset();
-        }
-
-        public void reset() {
-            previousVector = null;
-            currentVector = null;
-            runningSum = new Vector3(0, 0, 0, 0);
+        public void reset(long now) {
+            havePrevious = false;
+            sumX = 0;
+            sumY = 0;
+            sumZ = 0;
             energy = 0;
             sampleCount = 0;
-            lastReset = SystemClock.elapsedRealtime();
+            lastReset = now;
         }
 
         /**
-         * Apply a 3D vector v as the next element in the running SSE.
+         * Apply a 3D vector as the next element in the running SSE.
          */
-        public void accumulate(Vector3 v) {
-            if (v == null) {
-                if (DEBUG) Slog.i(TAG, "Cannot accumulate a null vector.");
-                return;
-            }
+        public void accumulate(float x, float y, float z) {
             sampleCount++;
-            runningSum = runningSum.plus(v);
-            previousVector = currentVector;
-            currentVector = v;
-            if (previousVector != null) {
-                Vector3 dv = currentVector.minus(previousVector);
-                float incrementalEnergy = dv.x * dv.x + dv.y * dv.y + dv.z * dv.z;
+            sumX += x;
+            sumY += y;
+            sumZ += z;
+            if (havePrevious) {
+                float dx = x - previousX;
+                float dy = y - previousY;
+                float dz = z - previousZ;
+                float incrementalEnergy = dx * dx + dy * dy + dz * dz;
                 energy += incrementalEnergy;
-                if (DEBUG) Slog.i(TAG, "Accumulated vector " + currentVector.toString() +
-                        ", runningSum = " + runningSum.toString() +
-                        ", incrementalEnergy = " + incrementalEnergy +
-                        ", energy = " + energy);
+                if (DEBUG) Slog.i(TAG, "Accumulated %s, incrementalEnergy = %f", this, incrementalEnergy);
             }
+            previousX = x;
+            previousY = y;
+            previousZ = z;
+            havePrevious = true;
         }
 
-        public Vector3 getRunningAverage() {
-            if (sampleCount > 0) {
-              return runningSum.times((1.0f / (float)sampleCount));
-            }
-            return null;
+        public float getAverageX() {
+            return sampleCount > 0 ? sumX / sampleCount : 0f;
+        }
+
+        public float getAverageY() {
+            return sampleCount > 0 ? sumY / sampleCount : 0f;
+        }
+
+        public float getAverageZ() {
+            return sampleCount > 0 ? sumZ / sampleCount : 0f;
         }
 
         public float getEnergy() {
@@ -338,16 +378,8 @@ public class MotionSensor {
         @NonNull
         @Override
         public String toString() {
-            String msg = "";
-            String currentVectorString = (currentVector == null) ?
-                "null" : currentVector.toString();
-            String previousVectorString = (previousVector == null) ?
-                "null" : previousVector.toString();
-            msg += "previousVector = " + previousVectorString;
-            msg += ", currentVector = " + currentVectorString;
-            msg += ", sampleCount = " + sampleCount;
-            msg += ", energy = " + energy;
-            return msg;
+            return String.format(Locale.ENGLISH, "current = %f,%f,%f, sum = %f,%f,%f, sampleCount = %d, energy = %f",
+                    previousX, previousY, previousZ, sumX, sumY, sumZ, sampleCount, energy);
         }
     }
 }
@@ -24,6 +24,8 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.graphics.RectF;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.Html;
 
 import java.io.BufferedReader;
@@ -33,10 +35,14 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 import androidx.preference.PreferenceManager;
 import eu.chainfire.holeylight.Application;
@@ -51,8 +57,22 @@ public class Settings implements SharedPreferences.OnSharedPreferenceChangeListe
 
     public static boolean tuning = false;
 
+    // Listeners register for the groups they care about, and are only called on the main
+    // thread for changes in those groups
+    public enum Group { DIMENSIONS, COLORS, MODES, AOD, OTHER }
+
     public interface OnSettingsChangedListener {
-        void onSettingsChanged();
+        default void onSettingsChanged() {
+        }
+
+        /**
+         * groups holds the changed groups this listener registered for. previous and current
+         * are the same instance if only settings outside of the snapshot changed, such as
+         * channel colors
+         */
+        default void onSettingsChanged(Set<Group> groups, Snapshot previous, Snapshot current) {
+            onSettingsChanged();
+        }
     }
 
     private static final int SHIFT_SCREEN_ON = 0;
@@ -182,10 +202,10 @@ public class Settings implements SharedPreferences.OnSharedPreferenceChangeListe
 
     private static final String SPEED_FACTOR = "speed_factor";
 
-    private static final String CHANNEL_COLOR = "CHANNEL_COLOR:";
-    private static final String CHANNEL_COLOR_CONVERSATION = "CHANNEL_COLOR_CONVERSATION:";
-    private static final String CHANNEL_COLOR_FMT = CHANNEL_COLOR + "%s:%s";
-    private static final String CHANNEL_COLOR_CONVERSATION_FMT = CHANNEL_COLOR_CONVERSATION + "%s:%s";
+    // channel colors are kept in ChannelColorStore, these prefixes are only used for its keys,
+    // migration and import/export
+    static final String CHANNEL_COLOR = "CHANNEL_COLOR:";
+    static final String CHANNEL_COLOR_CONVERSATION = "CHANNEL_COLOR_CONVERSATION:";
     public static final String CHANNEL_NAME_DEFAULT = "default";
 
     private static final String CHANNEL_RESPECT_NOTIFICATION_COLOR_STATE = "RESPECT_NOTIFICATION_COLOR_STATE:";
@@ -222,6 +242,14 @@ public class Settings implements SharedPreferences.OnSharedPreferenceChangeListe
     public static final String BLACK_FILL = "black_fill";
     public static final boolean BLACK_FILL_DEFAULT = true;
 
+    public static final String PRE_TINTED_SHEETS = "pre_tinted_sheets";
+    public static final boolean PRE_TINTED_SHEETS_DEFAULT = true;
+
+    private static final String HARDWARE_RENDERER_FMT = "hardware_renderer_%s_%d";
+
+    public static final String COLOR_EXTRACTION = "color_extraction";
+    public static final ColorAnalyzer.Extraction COLOR_EXTRACTION_DEFAULT = ColorAnalyzer.Extraction.MEAN;
+
     private static final String DEVICE_OFFICIAL_SUPPORT_WARNING_SHOWN = "device_official_support_warning_shown";
 
     public static final String AOD_HELPER_CONTROL = "aod_helper_control";
@@ -242,6 +270,249 @@ public class Settings implements SharedPreferences.OnSharedPreferenceChangeListe
     private static final String ENABLE_DEBUG = "enable_debug";
     private static final String ENABLE_DEBUG_OVERLAY = "enable_debug_overlay";
 
+    private static String[] modeKeys(String format) {
+        String[] ret = new String[SCREEN_AND_POWER_STATE.length];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = String.format(Locale.ENGLISH, format, SCREEN_AND_POWER_STATE[i]);
+        }
+        return ret;
+    }
+
+    // SCREEN_AND_POWER_STATE indexed
+    private static final String[] ENABLED_WHILE_KEYS = modeKeys(ENABLED_WHILE_FMT);
+    private static final String[] ANIMATION_STYLE_KEYS = modeKeys(ANIMATION_STYLE_FMT);
+    private static final String[] SEEN_PICKUP_WHILE_KEYS = modeKeys(SEEN_PICKUP_WHILE_FMT);
+    private static final String[] SEEN_TIMEOUT_KEYS = modeKeys(SEEN_TIMEOUT_FMT);
+
+    // SpritePlayer.Mode ordinal indexed, calibration is redone after updates, rendering code may have changed
+    private static final String[] HARDWARE_RENDERER_KEYS = new String[SpritePlayer.Mode.values().length];
+    static {
+        for (SpritePlayer.Mode mode : SpritePlayer.Mode.values()) {
+            HARDWARE_RENDERER_KEYS[mode.ordinal()] = String.format(Locale.ENGLISH, HARDWARE_RENDERER_FMT, mode.name().toLowerCase(Locale.ENGLISH), BuildConfig.VERSION_CODE);
+        }
+    }
+
+    private static final Map<String, Group> GROUPS = new HashMap<>();
+    static {
+        for (String key : new String[] {
+                CUTOUT_AREA_LEFT, CUTOUT_AREA_TOP, CUTOUT_AREA_RIGHT, CUTOUT_AREA_BOTTOM,
+                DP_ADD_SCALE_BASE, DP_ADD_SCALE_HORIZONTAL, DP_SHIFT_VERTICAL, DP_SHIFT_HORIZONTAL, DP_ADD_THICKNESS,
+                SPEED_FACTOR, PRE_TINTED_SHEETS, USING_VI_DIRECTOR
+        }) {
+            GROUPS.put(key, Group.DIMENSIONS);
+        }
+        for (String key : HARDWARE_RENDERER_KEYS) {
+            GROUPS.put(key, Group.DIMENSIONS);
+        }
+
+        GROUPS.put(COLOR_EXTRACTION, Group.COLORS);
+
+        for (String key : new String[] {
+                ENABLED_MASTER, ENABLED_LOCKSCREEN,
+                SEEN_IF_SCREEN_ON, SEEN_ON_LOCKSCREEN, SEEN_ON_USER_PRESENT, SEEN_TIMEOUT_TRACK_SEPARATELY,
+                RESPECT_DND, UNHOLEY_LIGHT_ICONS, UPDATE_COUNTER, OVERLAY_LINGER, BLACK_FILL
+        }) {
+            GROUPS.put(key, Group.MODES);
+        }
+        for (String[] keys : new String[][] { ENABLED_WHILE_KEYS, ANIMATION_STYLE_KEYS, SEEN_PICKUP_WHILE_KEYS, SEEN_TIMEOUT_KEYS }) {
+            for (String key : keys) {
+                GROUPS.put(key, Group.MODES);
+            }
+        }
+
+        for (String key : new String[] {
+                HIDE_AOD, HIDE_AOD_FULLY, AOD_HELPER_CONTROL, AOD_HELPER_BRIGHTNESS, AOD_SHOW_CLOCK
+        }) {
+            GROUPS.put(key, Group.AOD);
+        }
+    }
+
+    private static Group getGroup(String key) {
+        Group group = GROUPS.get(key);
+        if (group != null) return group;
+        if (key.startsWith(CHANNEL_RESPECT_NOTIFICATION_COLOR_STATE) || key.startsWith(CHANNEL_COLOR) || key.startsWith(CHANNEL_COLOR_CONVERSATION)) return Group.COLORS;
+        return Group.OTHER;
+    }
+
+    /*
+        Immutable copy of the settings read on hot paths, rebuilt once when preferences change
+        rather than looking up (and formatting) keys on every read. Mode indexed values are
+        resolved for every mode, and values with an 'effective' variant are stored effective.
+
+        Dimension tuning values are NaN if not set, the caller's default applies.
+     */
+    public static final class Snapshot {
+        public final long version;
+
+        public final boolean enabled;
+        public final boolean enabledWhileScreenOn;
+        public final boolean enabledWhileScreenOff;
+        public final boolean enabledOnLockscreen;
+        public final long notificationsKey;
+
+        public final boolean seenIfScreenOn;
+        public final boolean seenOnLockscreen;
+        public final boolean seenOnUserPresent;
+        public final boolean seenTimeoutTrackSeparately;
+
+        public final boolean hideAOD;
+        public final boolean hideAODFully;
+        public final boolean respectDoNotDisturb;
+        public final boolean unholeyLightIcons;
+        public final int updateCounter;
+        public final int overlayLinger;
+        public final boolean blackFill;
+        public final boolean preTintedSheets;
+        public final boolean aodHelperControl;
+        public final boolean aodHelperBrightness;
+        public final boolean showAODClock;
+        public final ColorAnalyzer.Extraction colorExtraction;
+
+        public final float speedFactor;
+        private final float cutoutLeft;
+        private final float cutoutTop;
+        private final float cutoutRight;
+        private final float cutoutBottom;
+        private final float dpAddScaleBase;
+        private final float dpAddScaleHorizontal;
+        private final float dpShiftVertical;
+        private final float dpShiftHorizontal;
+        private final float dpAddThickness;
+
+        private final boolean[] enabledWhile;
+        private final SpritePlayer.Mode[] animationMode;
+        private final boolean[] seenPickupWhile;
+        private final int[] seenTimeout;
+        private final Boolean[] hardwareRenderer;
+
+        private Snapshot(Settings settings, long version) {
+            this.version = version;
+
+            enabled = settings.isEnabled();
+            enabledWhile = new boolean[SCREEN_AND_POWER_STATE.length];
+            animationMode = new SpritePlayer.Mode[SCREEN_AND_POWER_STATE.length];
+            seenPickupWhile = new boolean[SCREEN_AND_POWER_STATE.length];
+            seenTimeout = new int[SCREEN_AND_POWER_STATE.length];
+            for (int i = 0; i < SCREEN_AND_POWER_STATE.length; i++) {
+                enabledWhile[i] = settings.isEnabledWhile(i, true);
+                animationMode[i] = settings.getAnimationMode(i);
+                seenPickupWhile[i] = settings.isSeenPickupWhile(i, true);
+                seenTimeout[i] = settings.getSeenTimeout(i);
+            }
+            enabledWhileScreenOn = settings.isEnabledWhileScreenOn();
+            enabledWhileScreenOff = settings.isEnabledWhileScreenOff();
+            enabledOnLockscreen = settings.isEnabledOnLockscreen();
+            notificationsKey = settings.refreshNotificationsKey();
+
+            seenIfScreenOn = settings.isSeenIfScreenOn(true);
+            seenOnLockscreen = settings.isSeenOnLockscreen(true);
+            seenOnUserPresent = settings.isSeenOnUserPresent(true);
+            seenTimeoutTrackSeparately = settings.isSeenTimeoutTrackSeparately();
+
+            hideAOD = settings.isHideAOD();
+            hideAODFully = settings.isHideAODFully();
+            respectDoNotDisturb = settings.isRespectDoNotDisturb();
+            unholeyLightIcons = settings.isUnholeyLightIcons();
+            updateCounter = settings.getUpdateCounter();
+            overlayLinger = settings.getOverlayLinger();
+            blackFill = settings.isBlackFill();
+            preTintedSheets = settings.isPreTintedSheets();
+            aodHelperControl = settings.isAODHelperControl();
+            aodHelperBrightness = settings.isAODHelperBrightness();
+            showAODClock = settings.isShowAODClock();
+            colorExtraction = settings.getColorExtraction();
+
+            speedFactor = settings.getSpeedFactor();
+            RectF cutout = settings.getCutoutAreaRect();
+            cutoutLeft = cutout.left;
+            cutoutTop = cutout.top;
+            cutoutRight = cutout.right;
+            cutoutBottom = cutout.bottom;
+            dpAddScaleBase = settings.getDpAddScaleBase(Float.NaN);
+            dpAddScaleHorizontal = settings.getDpAddScaleHorizontal(Float.NaN);
+            dpShiftVertical = settings.getDpShiftVertical(Float.NaN);
+            dpShiftHorizontal = settings.getDpShiftHorizontal(Float.NaN);
+            dpAddThickness = settings.getDpAddThickness(Float.NaN);
+
+            hardwareRenderer = new Boolean[SpritePlayer.Mode.values().length];
+            for (SpritePlayer.Mode mode : SpritePlayer.Mode.values()) {
+                hardwareRenderer[mode.ordinal()] = settings.getHardwareRenderer(mode);
+            }
+        }
+
+        public int getMode(boolean charging, boolean screenOn) {
+            return (charging ? SHIFT_CHARGING : SHIFT_BATTERY) + (screenOn ? SHIFT_SCREEN_ON : SHIFT_SCREEN_OFF);
+        }
+
+        public boolean isEnabledWhile(int mode) {
+            return enabledWhile[mode];
+        }
+
+        public SpritePlayer.Mode getAnimationMode(int mode) {
+            return animationMode[mode];
+        }
+
+        public boolean isSeenPickupWhile(int mode) {
+            return seenPickupWhile[mode];
+        }
+
+        public int getSeenTimeout(int mode) {
+            return seenTimeout[mode];
+        }
+
+        public Boolean getHardwareRenderer(SpritePlayer.Mode mode) {
+            return hardwareRenderer[mode.ordinal()];
+        }
+
+        public RectF getCutoutAreaRect() {
+            return new RectF(cutoutLeft, cutoutTop, cutoutRight, cutoutBottom);
+        }
+
+        private static float orDefault(float value, float defaultValue) {
+            return Float.isNaN(value) ? defaultValue : value;
+        }
+
+        public float getDpAddScaleBase(float defaultValue) {
+            return orDefault(dpAddScaleBase, defaultValue);
+        }
+
+        public float getDpAddScaleHorizontal(float defaultValue) {
+            return orDefault(dpAddScaleHorizontal, defaultValue);
+        }
+
+        public float getDpShiftVertical(float defaultValue) {
+            return orDefault(dpShiftVertical, defaultValue);
+        }
+
+        public float getDpShiftHorizontal(float defaultValue) {
+            return orDefault(dpShiftHorizontal, defaultValue);
+        }
+
+        public float getDpAddThickness(float defaultValue) {
+            return orDefault(dpAddThickness, defaultValue);
+        }
+
+        /**
+         * Returns true if everything NotificationAnimation positions and renders with is the same
+         */
+        public boolean sameDimensions(Snapshot other) {
+            return (other == this) || (
+                    (Float.compare(speedFactor, other.speedFactor) == 0) &&
+                    (Float.compare(cutoutLeft, other.cutoutLeft) == 0) &&
+                    (Float.compare(cutoutTop, other.cutoutTop) == 0) &&
+                    (Float.compare(cutoutRight, other.cutoutRight) == 0) &&
+                    (Float.compare(cutoutBottom, other.cutoutBottom) == 0) &&
+                    (Float.compare(dpAddScaleBase, other.dpAddScaleBase) == 0) &&
+                    (Float.compare(dpAddScaleHorizontal, other.dpAddScaleHorizontal) == 0) &&
+                    (Float.compare(dpShiftVertical, other.dpShiftVertical) == 0) &&
+                    (Float.compare(dpShiftHorizontal, other.dpShiftHorizontal) == 0) &&
+                    (Float.compare(dpAddThickness, other.dpAddThickness) == 0) &&
+                    (preTintedSheets == other.preTintedSheets) &&
+                    Arrays.equals(hardwareRenderer, other.hardwareRenderer)
+            );
+        }
+    }
+
     private static Settings instance;
     public static Settings getInstance(Context context) {
         synchronized (Settings.class) {
@@ -252,18 +523,83 @@ public class Settings implements SharedPreferences.OnSharedPreferenceChangeListe
         }
     }
 
-    private final List<OnSettingsChangedListener> listeners = new ArrayList<>();
-    private final SharedPreferences prefs;
+    private static class Registration {
+        private final OnSettingsChangedListener listener;
+        private final Set<Group> groups;
+
+        private Registration(OnSettingsChangedListener listener, Set<Group> groups) {
+            this.listener = listener;
+            this.groups = groups;
+        }
+    }
+
+    private final List<Registration> listeners = new ArrayList<>();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Set<Group> pendingGroups = EnumSet.noneOf(Group.class);
+    private boolean dispatchPosted = false;
+    private final WriteBehindPreferences prefs;
+    private final ChannelColorStore channelColors;
     private volatile SharedPreferences.Editor editor = null;
     private volatile int ref = 0;
+    private volatile Snapshot snapshot;
+    private Snapshot notifiedSnapshot;
+    private long snapshotVersion = 0;
 
     private Settings(Context context) {
-        prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        prefs = new WriteBehindPreferences(PreferenceManager.getDefaultSharedPreferences(context));
         prefs.registerOnSharedPreferenceChangeListener(this);
+        channelColors = ChannelColorStore.getInstance(context);
+        refreshSnapshot();
+        notifiedSnapshot = snapshot;
+        migrateChannelColors();
         DEBUG = getDebug(false);
         DEBUG_OVERLAY = getDebugOverlay(false);
     }
 
+    private void migrateChannelColors() {
+        List<String> migrated = new ArrayList<>();
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            if (!(entry.getValue() instanceof Integer)) continue;
+            PackageColor packageColor = parseChannelColorKey(entry.getKey(), (Integer)entry.getValue());
+            if (packageColor == null) continue;
+            if (channelColors.get(entry.getKey()) == null) {
+                channelColors.put(packageColor.packageName, packageColor.channelName, packageColor.conversation, packageColor.color, true);
+            }
+            migrated.add(entry.getKey());
+        }
+        if (migrated.isEmpty()) return;
+
+        // only drop the preferences once the store made it to disk
+        channelColors.flush();
+        if (!channelColors.exists()) return;
+        edit();
+        try {
+            for (String key : migrated) {
+                editor.remove(key);
+            }
+        } finally {
+            save(true);
+        }
+    }
+
+    private static PackageColor parseChannelColorKey(String key, int color) {
+        String content;
+        boolean conversation;
+        if (key.startsWith(CHANNEL_COLOR)) {
+            content = key.substring(CHANNEL_COLOR.length());
+            conversation = false;
+        } else if (key.startsWith(CHANNEL_COLOR_CONVERSATION)) {
+            content = key.substring(CHANNEL_COLOR_CONVERSATION.length());
+            conversation = true;
+        } else {
+            return null;
+        }
+
+        int sep = content.indexOf(':');
+        if (sep < 0) return null;
+        return new PackageColor(content.substring(0, sep), content.substring(sep + 1), conversation, color);
+    }
+
     public void setDebug(Boolean debug, Boolean overlay) {
         edit();
         try {
@@ -301,25 +637,91 @@ public class Settings implements SharedPreferences.OnSharedPreferenceChangeListe
 
     @Override
     public synchronized void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
-        if (ref == 0) notifyListeners();
+        // while editing, save() refreshes once all changes are in
+        if (ref == 0) refreshSnapshot();
+        if (key == null) { // cleared
+            pendingGroups.addAll(EnumSet.allOf(Group.class));
+            postDispatch();
+        } else {
+            changed(getGroup(key));
+        }
     }
 
-    public synchronized void registerOnSettingsChangedListener(OnSettingsChangedListener onSettingsChangedListener) {
-        if (!listeners.contains(onSettingsChangedListener)) {
-            listeners.add(onSettingsChangedListener);
-        }
+    private synchronized void refreshSnapshot() {
+        snapshotVersion++;
+        snapshot = new Snapshot(this, snapshotVersion);
+    }
+
+    /**
+     * Current settings, safe to hold on to and read from any thread
+     */
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Register for changes in all groups
+     */
+    public void registerOnSettingsChangedListener(OnSettingsChangedListener onSettingsChangedListener) {
+        registerOnSettingsChangedListener(onSettingsChangedListener, Group.values());
+    }
+
+    public synchronized void registerOnSettingsChangedListener(OnSettingsChangedListener onSettingsChangedListener, Group... groups) {
+        unregisterOnSettingsChangedListener(onSettingsChangedListener);
+        Set<Group> set = EnumSet.noneOf(Group.class);
+        Collections.addAll(set, groups);
+        listeners.add(new Registration(onSettingsChangedListener, set));
     }
 
     public synchronized void unregisterOnSettingsChangedListener(OnSettingsChangedListener onSettingsChangedListener) {
-        listeners.remove(onSettingsChangedListener);
+        for (int i = listeners.size() - 1; i >= 0; i--) {
+            if (listeners.get(i).listener == onSettingsChangedListener) listeners.remove(i);
+        }
+    }
+
+    private synchronized void changed(Group group) {
+        pendingGroups.add(group);
+        postDispatch();
     }
 
-    private synchronized void notifyListeners() {
-        for (OnSettingsChangedListener listener : listeners) {
-            listener.onSettingsChanged();
+    private synchronized void postDispatch() {
+        // never call listeners from the writing thread, and coalesce keys written together
+        if (!dispatchPosted) {
+            handler.post(dispatch);
+            dispatchPosted = true;
         }
     }
 
+    private final Runnable dispatch = new Runnable() {
+        @Override
+        public void run() {
+            Set<Group> groups;
+            Snapshot previous;
+            Snapshot current;
+            List<Registration> registrations;
+            synchronized (Settings.this) {
+                dispatchPosted = false;
+                if (pendingGroups.isEmpty()) return;
+                groups = EnumSet.copyOf(pendingGroups);
+                pendingGroups.clear();
+                previous = notifiedSnapshot;
+                current = snapshot;
+                notifiedSnapshot = current;
+                registrations = new ArrayList<>(listeners);
+            }
+            for (Registration registration : registrations) {
+                Set<Group> relevant = EnumSet.copyOf(groups);
+                relevant.retainAll(registration.groups);
+                if (relevant.isEmpty()) continue;
+                synchronized (Settings.this) {
+                    // may have been unregistered by a previous listener
+                    if (!listeners.contains(registration)) continue;
+                }
+                registration.listener.onSettingsChanged(relevant, previous, current);
+            }
+        }
+    };
+
     @SuppressLint("CommitPrefEdits")
     public synchronized Settings edit() {
         if (editor == null) {
@@ -330,21 +732,22 @@ public class Settings implements SharedPreferences.OnSharedPreferenceChangeListe
         return this;
     }
 
+    /**
+     * Changes are visible immediately but written behind, coalesced with other changes. This
+     * never waits for the disk, immediately is kept for callers only; use flush() where
+     * durability matters.
+     */
     public synchronized void save(boolean immediately) {
         ref--;
         if (ref < 0) ref = 0;
         if (ref == 0) {
-            ref = 1; // prevent double notify
+            ref = 1; // onSharedPreferenceChanged doesn't need to refresh the snapshot
             try {
-                if (immediately) {
-                    editor.commit();
-                } else {
-                    editor.apply();
-                }
+                editor.apply();
             } finally {
                 ref = 0;
             }
-            notifyListeners();
+            refreshSnapshot();
             editor = null;
         }
     }
@@ -354,6 +757,18 @@ public class Settings implements SharedPreferences.OnSharedPreferenceChangeListe
         editor = null;
     }
 
+    /**
+     * Writes everything pending to disk before returning, for service shutdown
+     */
+    public void flush() {
+        prefs.flush(true);
+        channelColors.flush();
+    }
+
+    public WriteBehindPreferences.Stats getWriteStats() {
+        return prefs.getStats();
+    }
+
     private void put(String key, float value, boolean saveImmediately) {
         edit();
         try {
@@ -473,7 +888,7 @@ public class Settings implements SharedPreferences.OnSharedPreferenceChangeListe
     }
 
     public String getEnabledWhileKey(int mode) {
-        return String.format(Locale.ENGLISH, ENABLED_WHILE_FMT, SCREEN_AND_POWER_STATE[mode]);
+        return ENABLED_WHILE_KEYS[mode];
     }
 
     public void setEnabledWhile(int mode, boolean enabled) {
@@ -516,14 +931,11 @@ public class Settings implements SharedPreferences.OnSharedPreferenceChangeListe
             channelName = CHANNEL_NAME_DEFAULT;
             conversation = false;
         }
-        String keyChannel = String.format(Locale.ENGLISH, conversation ? CHANNEL_COLOR_CONVERSATION_FMT : CHANNEL_COLOR_FMT, packageName, channelName);
-        String keyDefault = String.format(Locale.ENGLISH, CHANNEL_COLOR_FMT, packageName, CHANNEL_NAME_DEFAULT);
-        if (prefs.contains(keyChannel)) {
-            return prefs.getInt(keyChannel, defaultValue);
-        } else if (prefs.contains(keyDefault) && returnAppDefault) {
-            return prefs.getInt(keyDefault, defaultValue);
+        PackageColor packageColor = channelColors.get(ChannelColorStore.key(packageName, channelName, conversation));
+        if ((packageColor == null) && returnAppDefault) {
+            packageColor = channelColors.get(ChannelColorStore.key(packageName, CHANNEL_NAME_DEFAULT, false));
         }
-        return defaultValue;
+        return packageColor != null ? packageColor.color : defaultValue;
     }
 
     public void setColorForPackageAndChannel(String packageName, String channelName, boolean conversation, int color, boolean fromListener) {
@@ -531,22 +943,16 @@ public class Settings implements SharedPreferences.OnSharedPreferenceChangeListe
             channelName = CHANNEL_NAME_DEFAULT;
             conversation = false;
         }
-        String key = String.format(Locale.ENGLISH, conversation ? CHANNEL_COLOR_CONVERSATION_FMT : CHANNEL_COLOR_FMT, packageName, channelName);
-        if (!prefs.contains(key) || (prefs.getInt(key, -1) != color)) {
-            put(key, color, fromListener);
+        // the listener records the color it just used, batch those and don't notify for them
+        if (channelColors.put(packageName, channelName, conversation, color, !fromListener) && !fromListener) {
+            changed(Group.COLORS);
         }
     }
 
     public void deleteColorForPackageAndChannel(String packageName, String channelName) {
         if (channelName == null) channelName = CHANNEL_NAME_DEFAULT;
-        String key = String.format(Locale.ENGLISH, CHANNEL_COLOR_FMT, packageName, channelName);
-        if (prefs.contains(key)) {
-            edit();
-            try {
-                editor.remove(key);
-            } finally {
-                save(true);
-            }
+        if (channelColors.remove(ChannelColorStore.key(packageName, channelName, false))) {
+            changed(Group.COLORS);
         }
     }
 
@@ -565,28 +971,7 @@ public class Settings implements SharedPreferences.OnSharedPreferenceChangeListe
     }
 
     public Map<String, PackageColor> getPackagesChannelsAndColors() {
-        Map<String, PackageColor> ret = new HashMap<>();
-        Map<String, ?> all = prefs.getAll();
-        for (String key : all.keySet()) {
-            String content;
-            boolean conversation;
-            if (key.startsWith(CHANNEL_COLOR)) {
-                content = key.substring(CHANNEL_COLOR.length());
-                conversation = false;
-            } else if (key.startsWith(CHANNEL_COLOR_CONVERSATION)) {
-                content = key.substring(CHANNEL_COLOR_CONVERSATION.length());
-                conversation = true;
-            } else continue;
-
-            int sep = content.indexOf(':');
-            if (sep >= 0) {
-                String pkg = content.substring(0, sep);
-                String chan = content.substring(sep + 1);
-                int color = prefs.getInt(key, 0);
-                ret.put(key, new PackageColor(pkg, chan, conversation, color));
-            }
-        }
-        return ret;
+        return channelColors.getAll();
     }
 
     public boolean isRespectNotificationColorStateForPackageAndChannel(String packageName, String channelName) {
@@ -598,7 +983,7 @@ public class Settings implements SharedPreferences.OnSharedPreferenceChangeListe
     }
 
     public String getSeenPickupWhileKey(int mode) {
-        return String.format(Locale.ENGLISH, SEEN_PICKUP_WHILE_FMT, SCREEN_AND_POWER_STATE[mode]);
+        return SEEN_PICKUP_WHILE_KEYS[mode];
     }
     
     public void setSeenPickupWhile(int mode, boolean seenPickup) {
@@ -622,7 +1007,7 @@ public class Settings implements SharedPreferences.OnSharedPreferenceChangeListe
     }
 
     public String getAnimationModeKey(int mode) {
-        return String.format(Locale.ENGLISH, ANIMATION_STYLE_FMT, SCREEN_AND_POWER_STATE[mode]);
+        return ANIMATION_STYLE_KEYS[mode];
     }
 
     public SpritePlayer.Mode getAnimationMode(int mode) {
@@ -709,7 +1094,7 @@ public class Settings implements SharedPreferences.OnSharedPreferenceChangeListe
     }
 
     public String getSeenTimeoutKey(int mode) {
-        return String.format(Locale.ENGLISH, SEEN_TIMEOUT_FMT, SCREEN_AND_POWER_STATE[mode]);
+        return SEEN_TIMEOUT_KEYS[mode];
     }
 
     public int getSeenTimeout(int mode) {
@@ -767,6 +1152,40 @@ public class Settings implements SharedPreferences.OnSharedPreferenceChangeListe
         put(BLACK_FILL, value, true);
     }
 
+    public boolean isPreTintedSheets() {
+        return prefs.getBoolean(PRE_TINTED_SHEETS, PRE_TINTED_SHEETS_DEFAULT);
+    }
+
+    public void setPreTintedSheets(boolean value) {
+        put(PRE_TINTED_SHEETS, value, true);
+    }
+
+    private String getHardwareRendererKey(SpritePlayer.Mode mode) {
+        return HARDWARE_RENDERER_KEYS[mode.ordinal()];
+    }
+
+    public Boolean getHardwareRenderer(SpritePlayer.Mode mode) {
+        String key = getHardwareRendererKey(mode);
+        if (!prefs.contains(key)) return null;
+        return prefs.getBoolean(key, false);
+    }
+
+    public void setHardwareRenderer(SpritePlayer.Mode mode, boolean value) {
+        put(getHardwareRendererKey(mode), value, true);
+    }
+
+    public ColorAnalyzer.Extraction getColorExtraction() {
+        String value = prefs.getString(COLOR_EXTRACTION, COLOR_EXTRACTION_DEFAULT.name());
+        for (ColorAnalyzer.Extraction extraction : ColorAnalyzer.Extraction.values()) {
+            if (extraction.name().equals(value)) return extraction;
+        }
+        return COLOR_EXTRACTION_DEFAULT;
+    }
+
+    public void setColorExtraction(ColorAnalyzer.Extraction value) {
+        put(COLOR_EXTRACTION, value.name(), true);
+    }
+
     public boolean isDeviceOfficialSupportWarningShown() {
         return prefs.getBoolean(DEVICE_OFFICIAL_SUPPORT_WARNING_SHOWN, false);
     }
@@ -856,13 +1275,17 @@ public class Settings implements SharedPreferences.OnSharedPreferenceChangeListe
 
             bufferedWriter.write(BuildConfig.APPLICATION_ID + " 1\r\n");
 
+            for (Map.Entry<String, PackageColor> entry : channelColors.getAll().entrySet()) {
+                if (!entry.getValue().conversation) {
+                    bufferedWriter.write(String.format(Locale.ENGLISH, "i 0x%08X %s\r\n", entry.getValue().color, entry.getKey()));
+                }
+            }
+
             Map<String, ?> prefsMap = prefs.getAll();
             for (String key : prefsMap.keySet()) {
                 Object value = prefsMap.get(key);
                 if (value != null) {
-                    if (key.startsWith(CHANNEL_COLOR)) {
-                        bufferedWriter.write(String.format(Locale.ENGLISH, "i 0x%08X %s\r\n", (Integer)value, key));
-                    } else if (key.startsWith(CHANNEL_RESPECT_NOTIFICATION_COLOR_STATE)) {
+                    if (key.startsWith(CHANNEL_RESPECT_NOTIFICATION_COLOR_STATE)) {
                         bufferedWriter.write(String.format(Locale.ENGLISH, "b %d %s\r\n", (Boolean)value ? 1 : 0, key));
                     }
                 }
@@ -885,6 +1308,7 @@ public class Settings implements SharedPreferences.OnSharedPreferenceChangeListe
 
             String line;
             boolean first = true;
+            boolean colorsLoaded = false;
             while ((line = bufferedReader.readLine()) != null) {
                 if (first) {
                     if (!line.trim().equals(BuildConfig.APPLICATION_ID + " 1")) {
@@ -898,7 +1322,7 @@ public class Settings implements SharedPreferences.OnSharedPreferenceChangeListe
                         for (String key : prefsMap.keySet()) {
                             Object value = prefsMap.get(key);
                             if (value != null) {
-                                if (key.startsWith(CHANNEL_COLOR) || key.startsWith(CHANNEL_RESPECT_NOTIFICATION_COLOR_STATE)) {
+                                if (key.startsWith(CHANNEL_RESPECT_NOTIFICATION_COLOR_STATE)) {
                                     toRemove.add(key);
                                 }
                             }
@@ -908,22 +1332,32 @@ public class Settings implements SharedPreferences.OnSharedPreferenceChangeListe
                             for (String key : toRemove) {
                                 editor.remove(key);
                             }
+                            channelColors.clear();
                         } finally {
                             save(true);
                         }
                     }
                 } else {
+                    String[] parts = line.trim().split(" ", 3);
+                    if (parts.length != 3) continue;
+                    String key = parts[2];
+
+                    PackageColor packageColor = parts[0].equals("i") ? parseChannelColorKey(key, Long.decode(parts[1]).intValue()) : null;
+                    if (packageColor != null) {
+                        if (overwrite || (channelColors.get(key) == null)) {
+                            channelColors.put(packageColor.packageName, packageColor.channelName, packageColor.conversation, packageColor.color, true);
+                            colorsLoaded = true;
+                        }
+                        continue;
+                    }
+
                     edit();
                     try {
-                        String[] parts = line.trim().split(" ", 3);
-                        if (parts.length == 3) {
-                            String key = parts[2];
-                            if (!overwrite && prefs.contains(key)) continue;
-                            if (parts[0].equals("i")) {
-                                editor.putInt(key, Long.decode(parts[1]).intValue());
-                            } else if (parts[0].equals("b")) {
-                                editor.putBoolean(key, parts[1].equals("1"));
-                            }
+                        if (!overwrite && prefs.contains(key)) continue;
+                        if (parts[0].equals("i")) {
+                            editor.putInt(key, Long.decode(parts[1]).intValue());
+                        } else if (parts[0].equals("b")) {
+                            editor.putBoolean(key, parts[1].equals("1"));
                         }
                     } finally {
                         save(true);
@@ -932,6 +1366,7 @@ public class Settings implements SharedPreferences.OnSharedPreferenceChangeListe
             }
 
             bufferedReader.close();
+            if (colorsLoaded) changed(Group.COLORS);
             return true;
         } catch (Exception e) {
             e.printStackTrace();
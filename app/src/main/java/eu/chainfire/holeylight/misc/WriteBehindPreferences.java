@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2019-2021 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.chainfire.holeylight.misc;
+
+import android.annotation.SuppressLint;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/*
+    SharedPreferences wrapper that keeps writes in memory and hands them to the real preferences
+    in a single apply() at most WINDOW ms after the first pending write. Reads see pending writes
+    immediately. Neither commit() nor apply() on our editor ever touch the disk from the calling
+    thread; flush() is available for when durability matters, such as service shutdown.
+
+    Our own listeners are called from the writing thread for every key whose value changed.
+    Changes made directly to the real preferences (by preference screens) are passed through,
+    the real preferences' notifications for keys we wrote ourselves are swallowed.
+ */
+@SuppressWarnings({ "WeakerAccess", "NullableProblems" })
+public class WriteBehindPreferences implements SharedPreferences, SharedPreferences.OnSharedPreferenceChangeListener {
+    private static final String TAG = "WriteBehind";
+
+    private static final long WINDOW = 250;
+
+    private static final Object REMOVED = new Object();
+
+    public static class Stats {
+        public final long puts;
+        public final long flushes;
+        public final long keysWritten;
+        public final long lastLatency;
+        public final long maxLatency;
+
+        private Stats(long puts, long flushes, long keysWritten, long lastLatency, long maxLatency) {
+            this.puts = puts;
+            this.flushes = flushes;
+            this.keysWritten = keysWritten;
+            this.lastLatency = lastLatency;
+            this.maxLatency = maxLatency;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH, "puts:%d flushes:%d keys:%d latency:%dms max:%dms", puts, flushes, keysWritten, lastLatency, maxLatency);
+        }
+    }
+
+    private final SharedPreferences prefs;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable runFlush = () -> flush(false);
+    private final Map<String, Object> pending = new HashMap<>();
+    private final Set<String> echo = new HashSet<>();
+    private final List<OnSharedPreferenceChangeListener> listeners = new ArrayList<>();
+    private long firstPending = 0;
+
+    private long puts = 0;
+    private long flushes = 0;
+    private long keysWritten = 0;
+    private long lastLatency = 0;
+    private long maxLatency = 0;
+
+    public WriteBehindPreferences(SharedPreferences prefs) {
+        this.prefs = prefs;
+        prefs.registerOnSharedPreferenceChangeListener(this);
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        Map<String, Object> ret = new HashMap<>(prefs.getAll());
+        synchronized (this) {
+            for (Map.Entry<String, Object> entry : pending.entrySet()) {
+                if (entry.getValue() == REMOVED) {
+                    ret.remove(entry.getKey());
+                } else {
+                    ret.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        return ret;
+    }
+
+    private synchronized Object getPending(String key) {
+        return pending.get(key);
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+        Object value = getPending(key);
+        if (value == null) return prefs.getString(key, defValue);
+        return value == REMOVED ? defValue : (String)value;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public Set<String> getStringSet(String key, Set<String> defValues) {
+        Object value = getPending(key);
+        if (value == null) return prefs.getStringSet(key, defValues);
+        return value == REMOVED ? defValues : (Set<String>)value;
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        Object value = getPending(key);
+        if (value == null) return prefs.getInt(key, defValue);
+        return value == REMOVED ? defValue : (Integer)value;
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        Object value = getPending(key);
+        if (value == null) return prefs.getLong(key, defValue);
+        return value == REMOVED ? defValue : (Long)value;
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        Object value = getPending(key);
+        if (value == null) return prefs.getFloat(key, defValue);
+        return value == REMOVED ? defValue : (Float)value;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        Object value = getPending(key);
+        if (value == null) return prefs.getBoolean(key, defValue);
+        return value == REMOVED ? defValue : (Boolean)value;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        Object value = getPending(key);
+        if (value == null) return prefs.contains(key);
+        return value != REMOVED;
+    }
+
+    @Override
+    public Editor edit() {
+        return new WriteBehindEditor();
+    }
+
+    @Override
+    public synchronized void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        if (!listeners.contains(listener)) listeners.add(listener);
+    }
+
+    @Override
+    public synchronized void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    private void notifyListeners(List<String> keys) {
+        List<OnSharedPreferenceChangeListener> targets;
+        synchronized (this) {
+            targets = new ArrayList<>(listeners);
+        }
+        for (String key : keys) {
+            for (OnSharedPreferenceChangeListener listener : targets) {
+                listener.onSharedPreferenceChanged(this, key);
+            }
+        }
+    }
+
+    private void merge(Map<String, Object> changes, boolean clear) {
+        List<String> changed = new ArrayList<>();
+        synchronized (this) {
+            if (clear) {
+                for (String key : getAll().keySet()) {
+                    if (!changes.containsKey(key)) changes.put(key, REMOVED);
+                }
+            }
+            Map<String, ?> real = prefs.getAll();
+            for (Map.Entry<String, Object> entry : changes.entrySet()) {
+                Object current = pending.containsKey(entry.getKey()) ? pending.get(entry.getKey()) : real.get(entry.getKey());
+                Object value = entry.getValue();
+                if ((current == null) || (current == REMOVED)) {
+                    if (value == REMOVED) continue;
+                } else if (current.equals(value)) {
+                    continue;
+                }
+                pending.put(entry.getKey(), value);
+                changed.add(entry.getKey());
+                puts++;
+            }
+            if (!changed.isEmpty() && (firstPending == 0)) {
+                firstPending = SystemClock.uptimeMillis();
+                handler.postAtTime(runFlush, firstPending + WINDOW);
+            }
+        }
+        notifyListeners(changed);
+    }
+
+    /**
+     * Hands pending writes to the real preferences. If durable, they're committed to disk
+     * before returning, otherwise they are applied.
+     */
+    @SuppressLint("ApplySharedPref")
+    public void flush(boolean durable) {
+        Map<String, Object> values;
+        long latency;
+        Editor editor = prefs.edit();
+        synchronized (this) {
+            handler.removeCallbacks(runFlush);
+            values = new HashMap<>(pending);
+            latency = values.isEmpty() ? 0 : SystemClock.uptimeMillis() - firstPending;
+            firstPending = 0;
+
+            Map<String, ?> current = prefs.getAll();
+            for (Map.Entry<String, Object> entry : values.entrySet()) {
+                String key = entry.getKey();
+                Object value = entry.getValue();
+                if (value == REMOVED) {
+                    if (!current.containsKey(key)) continue;
+                    editor.remove(key);
+                } else {
+                    if (Objects.equals(current.get(key), value)) continue;
+                    put(editor, key, value);
+                }
+                echo.add(key);
+            }
+        }
+
+        // outside our lock, the real preferences may call listeners from here. An empty commit
+        // still waits for earlier applies to reach the disk.
+        if (durable) {
+            editor.commit();
+        } else if (!values.isEmpty()) {
+            editor.apply();
+        }
+        if (values.isEmpty()) return;
+
+        synchronized (this) {
+            // values written to pending meanwhile stay
+            for (Map.Entry<String, Object> entry : values.entrySet()) {
+                if (pending.get(entry.getKey()) == entry.getValue()) pending.remove(entry.getKey());
+            }
+
+            flushes++;
+            keysWritten += values.size();
+            lastLatency = latency;
+            maxLatency = Math.max(maxLatency, latency);
+        }
+        Slog.d(TAG, "Flush keys:%d latency:%dms durable:%b", values.size(), latency, durable);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void put(Editor editor, String key, Object value) {
+        if (value instanceof String) {
+            editor.putString(key, (String)value);
+        } else if (value instanceof Set) {
+            editor.putStringSet(key, (Set<String>)value);
+        } else if (value instanceof Integer) {
+            editor.putInt(key, (Integer)value);
+        } else if (value instanceof Long) {
+            editor.putLong(key, (Long)value);
+        } else if (value instanceof Float) {
+            editor.putFloat(key, (Float)value);
+        } else if (value instanceof Boolean) {
+            editor.putBoolean(key, (Boolean)value);
+        }
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+        synchronized (this) {
+            if (key == null) {
+                echo.clear();
+            } else {
+                if (echo.remove(key)) return;
+                // written outside of us, that write is the latest
+                pending.remove(key);
+            }
+        }
+        List<String> keys = new ArrayList<>();
+        keys.add(key);
+        notifyListeners(keys);
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(puts, flushes, keysWritten, lastLatency, maxLatency);
+    }
+
+    private class WriteBehindEditor implements Editor {
+        private final Map<String, Object> changes = new HashMap<>();
+        private boolean clear = false;
+
+        @Override
+        public Editor putString(String key, String value) {
+            changes.put(key, value != null ? value : REMOVED);
+            return this;
+        }
+
+        @Override
+        public Editor putStringSet(String key, Set<String> values) {
+            changes.put(key, values != null ? new HashSet<>(values) : REMOVED);
+            return this;
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor remove(String key) {
+            changes.put(key, REMOVED);
+            return this;
+        }
+
+        @Override
+        public Editor clear() {
+            clear = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            apply();
+            return true;
+        }
+
+        @Override
+        public void apply() {
+            merge(changes, clear);
+            changes.clear();
+            clear = false;
+        }
+    }
+}
@@ -5,6 +5,7 @@ import android.content.Context;
 import android.content.Intent;
 
 import eu.chainfire.holeylight.BuildConfig;
+import eu.chainfire.holeylight.animation.Overlay;
 import eu.chainfire.holeylight.service.NotificationListenerService;
 
 public class AlarmReceiver extends BroadcastReceiver {
@@ -13,6 +14,9 @@ public class AlarmReceiver extends BroadcastReceiver {
     @Override
     public void onReceive(Context context, Intent intent) {
         try {
+            // AOD schedule boundary, see AODControl.setAODAlarm()
+            Overlay overlay = Overlay.getInstance();
+            if (overlay != null) overlay.onInputChanged(Overlay.Input.SCHEDULE);
             NotificationListenerService.checkNotifications();
         } catch (Exception e) {
             e.printStackTrace();
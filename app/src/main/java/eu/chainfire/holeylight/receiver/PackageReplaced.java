@@ -6,6 +6,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 
+import eu.chainfire.holeylight.misc.ColorAnalyzer;
 import eu.chainfire.holeylight.misc.Permissions;
 import eu.chainfire.holeylight.service.AccessibilityService;
 
@@ -16,6 +17,9 @@ public class PackageReplaced extends BroadcastReceiver {
             // Notify user if we need more permissions
             Permissions.notify(context);
 
+            // Icon analysis may differ between versions
+            ColorAnalyzer.clear(context);
+
             // There's a bug in accessibility services somewhere that makes your package stop working
             // on update sometimes. This often fixes that.
             PackageManager packageManager = context.getPackageManager();
@@ -45,6 +45,7 @@ import eu.chainfire.holeylight.misc.ResolutionTracker;
 import eu.chainfire.holeylight.misc.Settings;
 import eu.chainfire.holeylight.misc.Slog;
 import eu.chainfire.holeylight.service.area.AreaFinder;
+import eu.chainfire.holeylight.test.BenchmarkRunner;
 import eu.chainfire.holeylight.test.TestRunner;
 
 @SuppressWarnings("FieldCanBeLocal")
@@ -58,6 +59,7 @@ public class AccessibilityService extends android.accessibilityservice.Accessibi
     private ResolutionTracker resolutionTracker = null;
 
     private BroadcastReceiver testRunnerReceiver = null;
+    private BroadcastReceiver benchmarkRunnerReceiver = null;
 
     @Override
     protected void attachBaseContext(Context newBase) {
@@ -240,6 +242,14 @@ public class AccessibilityService extends android.accessibilityservice.Accessibi
                 }
             };
             registerReceiver(testRunnerReceiver, new IntentFilter(BuildConfig.APPLICATION_ID + ".test"));
+
+            benchmarkRunnerReceiver = new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    BenchmarkRunner.start(AccessibilityService.this);
+                }
+            };
+            registerReceiver(benchmarkRunnerReceiver, new IntentFilter(BuildConfig.APPLICATION_ID + ".benchmark"));
         }
     }
 
@@ -254,4 +264,10 @@ public class AccessibilityService extends android.accessibilityservice.Accessibi
         settings = Settings.getInstance(this);
         resolutionTracker = new ResolutionTracker("Access", this);
     }
+
+    @Override
+    public void onDestroy() {
+        settings.flush();
+        super.onDestroy();
+    }
 }
\ No newline at end of file
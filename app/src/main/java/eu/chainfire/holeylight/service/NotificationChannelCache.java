@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2019-2021 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.chainfire.holeylight.service;
+
+import android.app.NotificationChannel;
+import android.os.Build;
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+    getNotificationChannels() is an IPC call returning every channel of a package, and we used
+    to make it for every notification on every update. This keeps the result per package until
+    the listener tells us a channel or channel group of that package was modified.
+ */
+@SuppressWarnings({ "WeakerAccess" })
+public class NotificationChannelCache {
+    private static class Channels {
+        private final Map<String, NotificationChannel> channels = new HashMap<>();
+        private final Map<String, List<NotificationChannel>> conversations = new HashMap<>();
+
+        private Channels(List<NotificationChannel> list) {
+            for (NotificationChannel channel : list) {
+                channels.put(channel.getId(), channel);
+            }
+            if (Build.VERSION.SDK_INT >= 30) {
+                for (NotificationChannel channel : list) {
+                    String parent = channel.getParentChannelId();
+                    if ((channel.getConversationId() == null) || (parent == null) || parent.equals(channel.getId())) continue;
+                    List<NotificationChannel> children = conversations.get(parent);
+                    if (children == null) {
+                        children = new ArrayList<>();
+                        conversations.put(parent, children);
+                    }
+                    children.add(channel);
+                }
+            }
+        }
+    }
+
+    private final android.service.notification.NotificationListenerService service;
+    private final Map<String, Channels> packages = new HashMap<>();
+
+    public NotificationChannelCache(android.service.notification.NotificationListenerService service) {
+        this.service = service;
+    }
+
+    private synchronized Channels get(String packageName) {
+        Channels ret = packages.get(packageName);
+        if (ret == null) {
+            ret = new Channels(service.getNotificationChannels(packageName, Process.myUserHandle()));
+            packages.put(packageName, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * May throw SecurityException, see getNotificationChannels()
+     */
+    public NotificationChannel getChannel(String packageName, String channelId) {
+        return get(packageName).channels.get(channelId);
+    }
+
+    /**
+     * Conversation channels that have channelId as parent. Only available on Android 11+.
+     */
+    public List<NotificationChannel> getConversations(String packageName, String channelId) {
+        List<NotificationChannel> ret = get(packageName).conversations.get(channelId);
+        return ret != null ? ret : Collections.emptyList();
+    }
+
+    public synchronized void invalidate(String packageName) {
+        packages.remove(packageName);
+    }
+
+    public synchronized void clear() {
+        packages.clear();
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2019-2021 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.chainfire.holeylight.service;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.Locale;
+
+/*
+    Coalesces the events that should lead to re-evaluating notifications into a single run.
+
+    Every event pushes the run back by its delay (debounce), but never past maxLatency after the
+    first event of the batch, so a steady stream of events can't starve processing. The run
+    receives a summary of what happened, so it can skip work that isn't needed.
+ */
+@SuppressWarnings({ "WeakerAccess" })
+public class NotificationEventBatcher {
+    public enum Type { POSTED, REMOVED, RANKING, CHANNEL, SETTINGS, STATE, TIMEOUT }
+
+    public static class Batch {
+        private final int[] counts;
+        private final int total;
+
+        private Batch(int[] counts) {
+            this.counts = counts;
+            int total = 0;
+            for (int count : counts) total += count;
+            this.total = total;
+        }
+
+        public int getCount(Type type) {
+            return counts[type.ordinal()];
+        }
+
+        public int getTotal() {
+            return total;
+        }
+
+        public boolean isOnly(Type type) {
+            return (total > 0) && (counts[type.ordinal()] == total);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (Type type : Type.values()) {
+                if (counts[type.ordinal()] == 0) continue;
+                if (sb.length() > 0) sb.append(' ');
+                sb.append(type.name().toLowerCase(Locale.ENGLISH)).append(':').append(counts[type.ordinal()]);
+            }
+            return sb.toString();
+        }
+    }
+
+    public interface OnBatchListener {
+        void onBatch(Batch batch);
+    }
+
+    private final Handler handler;
+    private final long maxLatencyMillis;
+    private final OnBatchListener onBatchListener;
+
+    private int[] counts = new int[Type.values().length];
+    private int pending = 0;
+    private long due = 0;
+    private long deadline = 0;
+
+    private volatile long eventsReceived = 0;
+    private volatile long runs = 0;
+
+    public NotificationEventBatcher(Handler handler, long maxLatencyMillis, OnBatchListener onBatchListener) {
+        this.handler = handler;
+        this.maxLatencyMillis = maxLatencyMillis;
+        this.onBatchListener = onBatchListener;
+    }
+
+    private final Runnable runBatch = new Runnable() {
+        @Override
+        public void run() {
+            Batch batch;
+            synchronized (NotificationEventBatcher.this) {
+                if (pending == 0) return;
+                batch = new Batch(counts);
+                counts = new int[Type.values().length];
+                pending = 0;
+                runs++;
+            }
+            onBatchListener.onBatch(batch);
+        }
+    };
+
+    public synchronized void add(Type type, long delayMillis) {
+        long now = SystemClock.uptimeMillis();
+        counts[type.ordinal()]++;
+        eventsReceived++;
+        if (pending == 0) {
+            due = now + delayMillis;
+            deadline = now + Math.max(delayMillis, maxLatencyMillis);
+        } else {
+            due = Math.max(due, now + delayMillis);
+        }
+        pending++;
+        handler.removeCallbacks(runBatch);
+        handler.postAtTime(runBatch, Math.min(due, deadline));
+    }
+
+    public synchronized void cancel() {
+        handler.removeCallbacks(runBatch);
+        counts = new int[Type.values().length];
+        pending = 0;
+    }
+
+    public long getEventsReceived() {
+        return eventsReceived;
+    }
+
+    public long getRuns() {
+        return runs;
+    }
+}
@@ -28,25 +28,29 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.res.Configuration;
 import android.database.ContentObserver;
+import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.Icon;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
-import android.os.Process;
 import android.os.UserHandle;
 import android.service.notification.StatusBarNotification;
 import android.telephony.PhoneStateListener;
 import android.telephony.TelephonyManager;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 
 import eu.chainfire.holeylight.BuildConfig;
+import eu.chainfire.holeylight.animation.IconBitmapCache;
 import eu.chainfire.holeylight.animation.Overlay;
 import eu.chainfire.holeylight.misc.AODControl;
 import eu.chainfire.holeylight.misc.Battery;
@@ -62,24 +66,60 @@ import eu.chainfire.holeylight.misc.Slog;
 public class NotificationListenerService extends android.service.notification.NotificationListenerService implements Settings.OnSettingsChangedListener {
     public static volatile Integer test_lastColorCount = null;
 
+    private static final int MAX_LATENCY = 500;
+
     private static NotificationListenerService instance = null;
     public static NotificationListenerService getInstance() {
         return instance;
     }
     public static void checkNotifications() {
         if (instance != null) {
-            instance.handleLEDNotifications();
+            instance.handleLEDNotifications(NotificationEventBatcher.Type.STATE);
         }
     }
 
     private ContentObserver refreshLEDObserver = null;
     private ContentObserver refreshLEDObserverSlow = null;
 
+    // Compact notification identity. The 64-bit hash is computed once, the fields are only
+    // compared when hashes match.
+    public static final class Identity {
+        private final String packageName;
+        private final String name;
+        private final int value;
+        private final int extra;
+        private final long hash;
+
+        private Identity(String packageName, String name, int value, int extra) {
+            this.packageName = packageName;
+            this.name = name;
+            this.value = value;
+            this.extra = extra;
+            long h = ((long)(packageName != null ? packageName.hashCode() : 0) << 32) ^ (name != null ? name.hashCode() : 0);
+            h = (h ^ value) * 0x9E3779B97F4A7C15L;
+            h = (h ^ extra) * 0xC2B2AE3D27D4EB4FL;
+            this.hash = h ^ (h >>> 31);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Identity)) return false;
+            Identity other = (Identity)o;
+            return (hash == other.hash) && (value == other.value) && (extra == other.extra) &&
+                    Objects.equals(packageName, other.packageName) && Objects.equals(name, other.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int)(hash ^ (hash >>> 32));
+        }
+    }
+
     @SuppressWarnings("unused")
     public static class ActiveNotification {
-        private static final Map<String, Drawable> drawableCache = new HashMap<>();
         public static void clearCache() {
-            drawableCache.clear();
+            IconBitmapCache.getInstance().clear();
         }
 
         private final String key;
@@ -89,24 +129,52 @@ public class NotificationListenerService extends android.service.notification.No
         private boolean conversation = false;
         private int color = 0;
         private Icon icon = null;
+        private int iconResId = 0;
+
+        // derived from the above, (re)built by the setters which are only called while resolving
+        private final String compare;
+        private final Identity compareIdentity;
+        private Identity identity;
+        private Identity iconIdentity = null;
 
         public ActiveNotification(String key, String packageName, String channelName, CharSequence tickerText) {
             this.key = key;
             this.packageName = packageName;
             this.channelName = channelName;
             this.tickerText = tickerText;
+            compare = packageName + "::" + channelName;
+            compareIdentity = new Identity(packageName, channelName, 0, 0);
+            updateIdentities();
+        }
+
+        private void updateIdentities() {
+            identity = new Identity(packageName, channelName, color, conversation ? 1 : 0);
+            iconIdentity = iconResId != 0 ? new Identity(packageName, null, iconResId, color) : null;
         }
 
         public String toCompare() {
-            return toCompare(false);
+            return compare;
         }
 
-        public String toCompare(boolean withColorAndConversation) {
-            if (withColorAndConversation) {
-                return packageName + "::" + channelName + "::" + color + "::" + (conversation ? "conv" : "noconv");
-            } else {
-                return packageName + "::" + channelName;
-            }
+        /**
+         * Package and channel
+         */
+        public Identity getCompareIdentity() {
+            return compareIdentity;
+        }
+
+        /**
+         * Package, channel, color and conversation state
+         */
+        public Identity getIdentity() {
+            return identity;
+        }
+
+        /**
+         * Package, icon resource and color, or null if the icon isn't a resource
+         */
+        public Identity getIconIdentity() {
+            return iconIdentity;
         }
 
         public String getKey() {
@@ -135,6 +203,7 @@ public class NotificationListenerService extends android.service.notification.No
 
         public void setColor(int color) {
             this.color = color;
+            updateIdentities();
         }
 
         public boolean getConversation() {
@@ -143,6 +212,7 @@ public class NotificationListenerService extends android.service.notification.No
 
         public void setConversation(boolean conversation) {
             this.conversation = conversation;
+            updateIdentities();
         }
 
         public Icon getIcon() {
@@ -151,9 +221,6 @@ public class NotificationListenerService extends android.service.notification.No
 
         public void setIcon(Icon icon) {
             this.icon = icon;
-        }
-
-        public String getIconId() {
             int id = 0;
             try {
                 id = icon.getResId();
@@ -161,44 +228,98 @@ public class NotificationListenerService extends android.service.notification.No
             } catch (Exception ignored) {
                 // intentionally do nothing
             }
-            if (id == 0) return null;
-            return getPackageName() + ":" + id;
+            iconResId = id;
+            updateIdentities();
+        }
+
+        public String getIconId() {
+            if (iconResId == 0) return null;
+            return getPackageName() + ":" + iconResId;
         }
 
         public Drawable getIconDrawable(Context context) {
-            Drawable d = drawableCache.get(toCompare());
-            if (d == null && icon != null) {
-                try {
-                    d = icon.loadDrawable(context);
-                    drawableCache.put(toCompare(), d);
-                } catch (Exception e) {
-                    e.printStackTrace();
+            if (icon == null) return null;
+            try {
+                return icon.loadDrawable(context);
+            } catch (Exception e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        /**
+         * Icon tinted with our color, size x size pixels
+         */
+        public Bitmap getIconBitmap(Context context, int size) {
+            if (icon == null) return null;
+            String iconId = getIconId();
+            return IconBitmapCache.getInstance().get(iconId != null ? iconId : toCompare(), color, size, () -> getIconDrawable(context));
+        }
+    }
+
+    // What the processing thread hands to the main thread, never modified after creation
+    private static class Snapshot {
+        private final int[] colors;
+        private final Bitmap[] icons;
+
+        private Snapshot(List<ActiveNotification> notifications, Context context, boolean withIcons) {
+            colors = new int[notifications.size()];
+            icons = new Bitmap[notifications.size()];
+
+            // rasterized here at the size the TSP renderer draws them at, so it only has to blit
+            int iconCount = 0;
+            if (withIcons) {
+                for (ActiveNotification not : notifications) {
+                    if (not.getIcon() != null) iconCount++;
                 }
             }
-            return d;
+            int size = iconCount == 0 ? 0 : Math.round((iconCount == 1 ? IconBitmapCache.SIZE_LARGE_DP : IconBitmapCache.SIZE_SMALL_DP) * context.getResources().getDisplayMetrics().density);
+
+            for (int i = 0; i < notifications.size(); i++) {
+                colors[i] = notifications.get(i).getColor();
+                if (iconCount > 0) icons[i] = notifications.get(i).getIconBitmap(context, size);
+            }
         }
     }
 
-    public synchronized List<ActiveNotification> getCurrentlyActiveNotifications() {
-        return new ArrayList<>(activeNotifications);
+    public List<ActiveNotification> getCurrentlyActiveNotifications() {
+        return new ArrayList<>(publishedNotifications);
     }
 
     private Settings settings = null;
     private int accessibilityServiceCounter = 0;
     private NotificationTracker tracker = null;
+    private NotificationChannelCache channelCache = null;
     private MotionSensor motionSensor = null;
     private KeyguardManager keyguardManager = null;
-    private List<ActiveNotification> currentNotifications = new ArrayList<>();
-    private boolean enabled = true;
+    private volatile List<ActiveNotification> currentNotifications = new ArrayList<>();
+    private Identity[] currentIdentities = new Identity[0];
+    private volatile Snapshot snapshot = new Snapshot(new ArrayList<>(), null, false);
+    private volatile boolean enabled = true;
     private long settingsKey = 0L;
     private boolean isUserPresent = false;
     private MotionSensor.MotionState lastMotionState = MotionSensor.MotionState.UNKNOWN;
     private long stationary_for_ms = 0;
-    private boolean connected = false;
+    private volatile boolean connected = false;
     private Handler handler;
+    private HandlerThread handlerThreadProcessing;
+    private Handler handlerProcessing;
+    private NotificationEventBatcher batcher;
     private final List<ActiveNotification> activeNotifications = new ArrayList<>();
-    private boolean forceRefresh = false;
-    private int callState = TelephonyManager.CALL_STATE_IDLE;
+    private volatile List<ActiveNotification> publishedNotifications = new ArrayList<>();
+    private volatile boolean forceRefresh = false;
+
+    // Tracked notifications, activeNotifications and the channel cache are only touched from
+    // the processing thread
+    private final TrackedNotifications<StatusBarNotification, ActiveNotification> trackedNotifications = new TrackedNotifications<>(new TrackedNotifications.Accessor<StatusBarNotification>() {
+        @Override public String getKey(StatusBarNotification notification) { return notification.getKey(); }
+        @Override public long getPostTime(StatusBarNotification notification) { return notification.getPostTime(); }
+        @Override public long getWhen(StatusBarNotification notification) { return notification.getNotification().when; }
+    });
+    private boolean rescanChanged = true;
+    private boolean lastRunComplete = false;
+
+    private volatile int callState = TelephonyManager.CALL_STATE_IDLE;
     private ResolutionTracker resolutionTracker = null;
 
     private final BroadcastReceiver broadcastReceiver = new BroadcastReceiver() {
@@ -226,13 +347,29 @@ public class NotificationListenerService extends android.service.notification.No
     };
     private IntentFilter intentFilter = null;
 
+    private final BroadcastReceiver packageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if ((intent.getAction() == null) || (intent.getData() == null)) return;
+
+            String packageName = intent.getData().getSchemeSpecificPart();
+            log("Intent: %s %s", intent.getAction(), packageName);
+
+            // icon may have changed
+            handlerProcessing.post(() -> ColorAnalyzer.invalidate(NotificationListenerService.this, packageName));
+            invalidateChannels(packageName);
+            handleLEDNotifications(NotificationEventBatcher.Type.CHANNEL);
+        }
+    };
+    private IntentFilter packageIntentFilter = null;
+
     private final PhoneStateListener phoneStateListener = new PhoneStateListener() {
         @Override
         public void onCallStateChanged(int state, String phoneNumber) {
             log("Call state --> %s", state == TelephonyManager.CALL_STATE_IDLE ? "IDLE" : "CALL");
             callState = state;
             forceRefresh = true;
-            handleLEDNotifications();
+            handleLEDNotifications(NotificationEventBatcher.Type.STATE);
         }
     };
 
@@ -251,7 +388,7 @@ public class NotificationListenerService extends android.service.notification.No
         LocaleHelper.updateResources(this);
         if (resolutionTracker.changed()) ActiveNotification.clearCache();
         forceRefresh = true;
-        handleLEDNotifications(250);
+        handleLEDNotifications(NotificationEventBatcher.Type.STATE, 250);
     }
 
     @Override
@@ -264,7 +401,15 @@ public class NotificationListenerService extends android.service.notification.No
 
         handler = new Handler(Looper.getMainLooper());
 
+        // Channel IPC, icon analysis and preferences are handled here, only the result is
+        // handed to the main thread
+        handlerThreadProcessing = new HandlerThread(BuildConfig.APPLICATION_ID + ":notifications");
+        handlerThreadProcessing.start();
+        handlerProcessing = new Handler(handlerThreadProcessing.getLooper());
+        batcher = new NotificationEventBatcher(handlerProcessing, MAX_LATENCY, this::handleLEDNotificationsInternal);
+
         tracker = NotificationTracker.getInstance();
+        channelCache = new NotificationChannelCache(this);
 
         callState = ((TelephonyManager)getSystemService(TELEPHONY_SERVICE)).getCallState();
 
@@ -274,7 +419,13 @@ public class NotificationListenerService extends android.service.notification.No
         intentFilter.addAction(Intent.ACTION_USER_PRESENT);
         intentFilter.setPriority(998);
 
-        settings.registerOnSettingsChangedListener(this);
+        packageIntentFilter = new IntentFilter();
+        packageIntentFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageIntentFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageIntentFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageIntentFilter.addDataScheme("package");
+
+        settings.registerOnSettingsChangedListener(this, Settings.Group.MODES, Settings.Group.COLORS);
 
         refreshLEDObserver = new ContentObserver(handler) {
             @Override public boolean deliverSelfNotifications() { return true; }
@@ -283,7 +434,7 @@ public class NotificationListenerService extends android.service.notification.No
             public void onChange(boolean selfChange) {
                 log("Force refresh");
                 forceRefresh = true;
-                handleLEDNotifications(100);
+                handleLEDNotifications(NotificationEventBatcher.Type.STATE, 100);
             }
         };
 
@@ -294,7 +445,7 @@ public class NotificationListenerService extends android.service.notification.No
             public void onChange(boolean selfChange) {
                 log("Force refresh (slow)");
                 forceRefresh = true;
-                handleLEDNotifications(500);
+                handleLEDNotifications(NotificationEventBatcher.Type.STATE, 500);
             }
         };
 
@@ -304,23 +455,30 @@ public class NotificationListenerService extends android.service.notification.No
     @Override
     public void onDestroy() {
         settings.unregisterOnSettingsChangedListener(this);
+        handlerThreadProcessing.quitSafely();
+        settings.flush();
+        log("Settings writes [%s]", settings.getWriteStats());
         super.onDestroy();
     }
 
     @Override
-    public void onSettingsChanged() {
-        enabled = settings.isEnabled();
-        long newKey = settings.refreshNotificationsKey();
+    public void onSettingsChanged(Set<Settings.Group> groups, Settings.Snapshot previous, Settings.Snapshot current) {
+        // colors are the only settings that go into resolving a notification
+        if (groups.contains(Settings.Group.COLORS)) invalidateResolved();
+        enabled = current.enabled;
+        long newKey = current.notificationsKey;
         if (newKey != settingsKey) {
             settingsKey = newKey;
             apply();
         }
-        int counter = settings.getUpdateCounter();
+        int counter = current.updateCounter;
         if (counter != accessibilityServiceCounter) {
             apply();
         }
         accessibilityServiceCounter = counter;
-        if (connected) handleLEDNotifications();
+        // icons are only rasterized when enabled, the snapshot must be rebuilt either way
+        if (previous.unholeyLightIcons != current.unholeyLightIcons) forceRefresh = true;
+        if (connected) handleLEDNotifications(NotificationEventBatcher.Type.SETTINGS);
     }
 
     @Override
@@ -330,10 +488,14 @@ public class NotificationListenerService extends android.service.notification.No
         instance = this;
         connected = true;
         tracker.clear();
+        handlerProcessing.post(channelCache::clear);
+        invalidateResolved();
+        requestRescan();
         isUserPresent = Display.isOn(this, false) && !keyguardManager.isKeyguardLocked();
         ((TelephonyManager)getSystemService(TELEPHONY_SERVICE)).listen(phoneStateListener, PhoneStateListener.LISTEN_CALL_STATE);
         registerReceiver(broadcastReceiver, intentFilter);
-        handleLEDNotifications();
+        registerReceiver(packageReceiver, packageIntentFilter);
+        handleLEDNotifications(NotificationEventBatcher.Type.STATE);
         startMotionSensor();
         getContentResolver().registerContentObserver(android.provider.Settings.Global.getUriFor("zen_mode"), false, refreshLEDObserver);
         getContentResolver().registerContentObserver(android.provider.Settings.Global.getUriFor("aod_show_state"), false, refreshLEDObserver);
@@ -353,6 +515,7 @@ public class NotificationListenerService extends android.service.notification.No
         getContentResolver().unregisterContentObserver(refreshLEDObserverSlow);
         stopMotionSensor();
         unregisterReceiver(broadcastReceiver);
+        unregisterReceiver(packageReceiver);
         ((TelephonyManager)getSystemService(TELEPHONY_SERVICE)).listen(phoneStateListener, PhoneStateListener.LISTEN_NONE);
         Overlay overlay = Overlay.getInstance();
         if (overlay != null) overlay.hide(true);
@@ -364,267 +527,326 @@ public class NotificationListenerService extends android.service.notification.No
     public void onInterruptionFilterChanged(int interruptionFilter) {
         super.onInterruptionFilterChanged(interruptionFilter);
         log("onInterruptionFilterChanged");
-        handleLEDNotifications();
+        handleLEDNotifications(NotificationEventBatcher.Type.STATE);
     }
 
     @Override
     public void onNotificationPosted(StatusBarNotification sbn) {
         super.onNotificationPosted(sbn);
         log("onNotificationPosted");
-        handleLEDNotifications();
+        applyPosted(sbn);
+        handleLEDNotifications(NotificationEventBatcher.Type.POSTED);
     }
 
     @Override
     public void onNotificationRemoved(StatusBarNotification sbn) {
         super.onNotificationRemoved(sbn);
         log("onNotificationRemoved");
-        handleLEDNotifications();
+        applyRemoved(sbn);
+        handleLEDNotifications(NotificationEventBatcher.Type.REMOVED);
     }
 
     @Override
     public void onNotificationChannelGroupModified(String pkg, UserHandle user, NotificationChannelGroup group, int modificationType) {
         super.onNotificationChannelGroupModified(pkg, user, group, modificationType);
         log("onNotificationChannelGroupModified");
-        handleLEDNotifications();
+        invalidateChannels(pkg);
+        handleLEDNotifications(NotificationEventBatcher.Type.CHANNEL);
     }
 
     @Override
     public void onNotificationChannelModified(String pkg, UserHandle user, NotificationChannel channel, int modificationType) {
         super.onNotificationChannelModified(pkg, user, channel, modificationType);
         log("onNotificationChannelModified");
-        handleLEDNotifications();
+        invalidateChannels(pkg);
+        handleLEDNotifications(NotificationEventBatcher.Type.CHANNEL);
     }
 
     @Override
     public void onNotificationRankingUpdate(RankingMap rankingMap) {
         super.onNotificationRankingUpdate(rankingMap);
         log("onNotificationRankingUpdate");
-        handleLEDNotifications();
+        requestRescan();
+        handleLEDNotifications(NotificationEventBatcher.Type.RANKING);
     }
 
-    private final Runnable runHandleLEDNotifications = this::handleLEDNotificationsInternal;
+    private void handleLEDNotifications(NotificationEventBatcher.Type type) {
+        handleLEDNotifications(type, 100);
+    }
 
-    private void handleLEDNotifications() {
-        handleLEDNotifications(100);
+    private void handleLEDNotifications(NotificationEventBatcher.Type type, int delayMillis) {
+        // Prevent update storm caused by updates in rapid succession. Events keep pushing the
+        // update back, but no further than MAX_LATENCY.
+        if (!connected) {
+            batcher.cancel();
+            return;
+        }
+        batcher.add(type, delayMillis);
     }
 
-    private void handleLEDNotifications(int delayMillis) {
-        // Prevent update storm caused by updates in rapid succession, and us updating settings ourselves
-        handler.removeCallbacks(runHandleLEDNotifications);
-        if (!connected) return;
-        handler.postDelayed(runHandleLEDNotifications, delayMillis);
+    private final Runnable runTimeout = () -> handleLEDNotifications(NotificationEventBatcher.Type.TIMEOUT);
+
+    public NotificationEventBatcher getEventBatcher() {
+        return batcher;
     }
 
     private String sanitizeChannelId(String channelId) {
         return channelId.replaceAll("[^a-zA-Z0-9_:.-]", "_");
     }
 
-    private synchronized void handleLEDNotificationsInternal() {
+    // Events are queued on the processing thread ahead of the (debounced) update they trigger
+    private void requestRescan() {
+        handlerProcessing.post(trackedNotifications::requestRescan);
+    }
+
+    private void invalidateResolved() {
+        handlerProcessing.post(trackedNotifications::invalidateResolved);
+    }
+
+    private void invalidateChannels(String packageName) {
+        handlerProcessing.post(() -> {
+            channelCache.invalidate(packageName);
+            trackedNotifications.invalidateResolved(not -> not.getPackageName().equals(packageName));
+        });
+    }
+
+    private void applyPosted(StatusBarNotification sbn) {
+        if (sbn == null) return;
+        handlerProcessing.post(() -> trackedNotifications.posted(sbn));
+    }
+
+    private void applyRemoved(StatusBarNotification sbn) {
+        if (sbn == null) return;
+        handlerProcessing.post(() -> trackedNotifications.removed(sbn));
+    }
+
+    private StatusBarNotification[] getTrackedNotifications() {
+        rescanChanged = trackedNotifications.isRescanPending() && trackedNotifications.rescan(getActiveNotifications());
+        return trackedNotifications.getNotifications(new StatusBarNotification[0]);
+    }
+
+    private void handleLEDNotificationsInternal(NotificationEventBatcher.Batch batch) {
         if (!connected) return;
 
-        log("handleLEDNotifications");
+        log("handleLEDNotifications [%s] events:%d runs:%d", batch, batcher.getEventsReceived(), batcher.getRuns());
 
+        Settings.Snapshot values = settings.getSnapshot();
         boolean screenOn = !Display.isDoze(this);
-        int mode = settings.getMode(Battery.isCharging(this), screenOn);
-        boolean dnd = settings.isRespectDoNotDisturb() && (android.provider.Settings.Global.getInt(getContentResolver(), "zen_mode", 0) > 0);
+        int mode = values.getMode(Battery.isCharging(this), screenOn);
+        boolean dnd = values.respectDoNotDisturb && (android.provider.Settings.Global.getInt(getContentResolver(), "zen_mode", 0) > 0);
         boolean inAODSchedule = AODControl.inAODSchedule(this, true) || (!Display.isOff(this, false));
-        int timeout = settings.getSeenTimeout(mode);
-
-        activeNotifications.clear();
+        int timeout = values.getSeenTimeout(mode);
 
         try {
+            StatusBarNotification[] tracked = getTrackedNotifications();
+
+            // ranking changes that didn't change any notification don't change what we show
+            if (batch.isOnly(NotificationEventBatcher.Type.RANKING) && !rescanChanged && lastRunComplete && !forceRefresh) {
+                log("handleLEDNotifications: ranking only, skipped");
+                scheduleFollowUp(currentNotifications.size(), timeout);
+                return;
+            }
+
+            lastRunComplete = false;
+            activeNotifications.clear();
             StatusBarNotification[] sbns = tracker.prune(
-                    getActiveNotifications(),
-                    !Display.isOn(this, false) || !settings.isSeenIfScreenOn(true),
+                    tracked,
+                    !Display.isOn(this, false) || !values.seenIfScreenOn,
                     timeout,
-                    !settings.isSeenTimeoutTrackSeparately() ? null : screenOn,
+                    !values.seenTimeoutTrackSeparately ? null : screenOn,
                     Display.isOn(this, false) // slightly different from screenOn
             );
             for (StatusBarNotification sbn : sbns) {
-                Notification not = sbn.getNotification();
-
-                int c = 0xFF000000;
-                int cChan = c;
-                boolean conversation = false;
-                boolean bubble = false;
-                boolean bubbleUnread = false;
-                String groupName = null;
-                String channelName = "legacy";
-
-                Boolean shouldShowLights = null;
-
-                if (not.getChannelId() != null) {
-                    channelName = sanitizeChannelId(not.getChannelId());
-
-                    List<NotificationChannel> chans = getNotificationChannels(sbn.getPackageName(), Process.myUserHandle());
-                    for (NotificationChannel chan : chans) {
-                        if (chan.getId().equals(not.getChannelId())) {
-                            if (Build.VERSION.SDK_INT >= 29) {
-                                bubble = not.getBubbleMetadata() != null;
-                                if (bubble) {
-                                    bubbleUnread |= !not.getBubbleMetadata().isNotificationSuppressed();
-                                }
-                            }
-                            if (Build.VERSION.SDK_INT >= 30) {
-                                for (NotificationChannel child : chans) {
-                                    if (!child.getId().equals(chan.getId()) && child.getConversationId() != null && child.getParentChannelId().equals(chan.getId())) {
-                                        log("CHILD %s --> #%08X [%s][%s]", child.getId(), child.getLightColor(), child.shouldShowLights() ? "Y" : "N", child.getGroup() == null ? "null" : child.getGroup());
-                                        conversation = true;
-                                    }
-                                }
-                            }
-                            if (groupName == null) groupName = chan.getGroup();
-
-                            if (chan.shouldShowLights() || conversation) {
-                                shouldShowLights = true;
-                                c = chan.getLightColor();
-                                cChan = c;
-
-                                // Twitter passes black for some reason, make white
-                                if ((c & 0xFFFFFF) == 0) c = 0xFFFFFF;
-
-                                // There's a lot of white notifications, try using the notification accent color instead
-                                if (
-                                        (
-                                                ((c & 0xFFFFFF) == 0xFFFFFF) && (
-                                                        (((not.color & 0xFFFFFF) > 0) || conversation) &&
-                                                        !sbn.getPackageName().equals(BuildConfig.APPLICATION_ID)
-                                                )
-                                        )
-                                ) {
-                                    // Set dominant channel to max brightness
-                                    int r = Color.red(not.color);
-                                    int g = Color.green(not.color);
-                                    int b = Color.blue(not.color);
-
-                                    if ((r >= g) && (r >= b)) {
-                                        r = 255;
-                                    } else if ((g >= r) && (g >= b)) {
-                                        g = 255;
-                                    } else {
-                                        b = 255;
-                                    }
-
-                                    c = Color.rgb(r, g, b);
-                                }
-
-                                // Override colors by analyzing icon (unless system, or Holey Light itself)
-                                c = ColorAnalyzer.analyze(this, sbn.getPackageName(), c);
-
-                                // Make sure we have alpha
-                                c = c | 0xFF000000;
-                            } else {
-                                if (shouldShowLights == null) {
-                                    shouldShowLights = chan.shouldShowLights();
-                                } else {
-                                    shouldShowLights |= chan.shouldShowLights();
-                                }
-                            }
-                        }
-                    }
+                ActiveNotification actNot = trackedNotifications.getResolved(sbn.getKey());
+                if (actNot == null) {
+                    actNot = resolveNotification(sbn);
+                    trackedNotifications.putResolved(sbn.getKey(), actNot);
                 }
-
-                ActiveNotification actNot = new ActiveNotification(sbn.getKey(), sbn.getPackageName(), channelName, not.tickerText);
                 activeNotifications.add(actNot);
-
-                // Save to prefs, or get overridden value from prefs
-                c = settings.getColorForPackageAndChannel(sbn.getPackageName(), channelName, conversation, c, ((cChan & 0x00FFFFFF) != 0x000000) || conversation);
-                settings.setColorForPackageAndChannel(sbn.getPackageName(), channelName, conversation, c, true);
-
-                // Respect notification color being black? We normally don't want this as a lot of
-                // notifications that we do want to show would disappear, but sometimes the same
-                // channel is used with and without color
-                if (settings.isRespectNotificationColorStateForPackageAndChannel(sbn.getPackageName(), channelName)) {
-                    if (((not.color & 0xFFFFFF) == 0) || (shouldShowLights != null && !shouldShowLights)) {
-                        c = 0;
-                    }
-                }
-
-                // Only light up with unread bubbles. Detected by seeing if the notification is suppressed (== read)
-                if (bubble && !bubbleUnread) {
-                    c = 0;
-                }
-
-                // Ignore auto-groups
-                if (not.getGroup() != null && not.getGroup().equals("ranker_group")) {
-                    c = 0;
-                }
-
-                // Make sure we have alpha (again)
-                c = c | 0xFF000000;
-
-                // user has set notification to full black, skip
-                log("%s [%s] (%s) --> #%08X / #%08X --> #%08X [%s][%s][%s][%s][%s][%s]", sbn.getKey(), sbn.getPackageName(), channelName, cChan, not.color, c, not.getSmallIcon() != null ? "I" : "x", shouldShowLights == null ? "x" : (shouldShowLights ? "Y" : "N"), conversation ? "C" : "x", bubble ? (bubbleUnread ? "U" : "B") : "x", not.getGroup() == null ? "null" : not.getGroup(), groupName == null ? "null" : groupName);
-                if ((c & 0xFFFFFF) == 0) {
-                    continue;
-                }
-
-                // save
-                actNot.setColor(c);
-                actNot.setConversation(conversation);
-                actNot.setIcon(not.getSmallIcon());
             }
+            lastRunComplete = true;
         } catch (SecurityException e) {
+            activeNotifications.clear();
+            lastRunComplete = false;
             // CompanionDeviceManager.getAssociations().size() == 0
+            requestRescan();
         }
 
         List<ActiveNotification> visibleNotifications = new ArrayList<>();
         if (!dnd && inAODSchedule) {
+            Set<Identity> seen = new HashSet<>();
             for (ActiveNotification not : activeNotifications) {
                 if (not.isVisible()) {
-                    boolean found = false;
-                    for (ActiveNotification vis : visibleNotifications) {
-                        if (not.toCompare().equals(vis.toCompare()) || (
-                                not.getIconId() != null &&
-                                not.getIconId().equals(vis.getIconId()) &&
-                                not.color == vis.color
-                        )) {
-                            found = true;
-                            break;
-                        }
-                    }
-                    if (!found) {
-                        visibleNotifications.add(not);
+                    Identity iconIdentity = not.getIconIdentity();
+                    if (seen.contains(not.getCompareIdentity()) || ((iconIdentity != null) && seen.contains(iconIdentity))) {
+                        continue;
                     }
+                    seen.add(not.getCompareIdentity());
+                    if (iconIdentity != null) seen.add(iconIdentity);
+                    visibleNotifications.add(not);
                 }
             }
         }
         visibleNotifications.sort((o1, o2) -> Integer.compare(o1.color & 0xFFFFFF, o2.color & 0xFFFFFF));
+        publishedNotifications = new ArrayList<>(activeNotifications);
 
-        boolean changes = (visibleNotifications.size() != currentNotifications.size());
-        if (!changes) {
-            for (int i = 0; i < currentNotifications.size(); i++) {
-                if (!currentNotifications.get(i).toCompare(true).equals(visibleNotifications.get(i).toCompare(true))) {
-                    changes = true;
-                    break;
-                }
-            }
+        Identity[] visibleIdentities = new Identity[visibleNotifications.size()];
+        for (int i = 0; i < visibleIdentities.length; i++) {
+            visibleIdentities[i] = visibleNotifications.get(i).getIdentity();
         }
+        boolean changes = !Arrays.equals(currentIdentities, visibleIdentities);
         if (changes || forceRefresh) {
+            snapshot = new Snapshot(visibleNotifications, this, values.unholeyLightIcons);
             currentNotifications = visibleNotifications;
-            motionSensor.resetDuration();
-            apply();
+            currentIdentities = visibleIdentities;
+            handler.post(() -> {
+                motionSensor.resetDuration();
+                apply();
+            });
+        }
+        scheduleFollowUp(visibleNotifications.size(), timeout);
+    }
+
+    // seen timeout and AOD alarm, needed after every pass including skipped ones
+    private void scheduleFollowUp(int visible, int timeout) {
+        if ((visible > 0) && (timeout > 0)) {
+            handlerProcessing.removeCallbacks(runTimeout);
+            handlerProcessing.postDelayed(runTimeout, timeout);
+        }
+        handler.post(() -> AODControl.setAODAlarm(this));
+    }
+
+    private ActiveNotification resolveNotification(StatusBarNotification sbn) {
+        Notification not = sbn.getNotification();
+
+        int c = 0xFF000000;
+        int cChan = c;
+        boolean conversation = false;
+        boolean bubble = false;
+        boolean bubbleUnread = false;
+        String groupName = null;
+        String channelName = "legacy";
+
+        Boolean shouldShowLights = null;
+
+        if (not.getChannelId() != null) {
+            channelName = sanitizeChannelId(not.getChannelId());
+
+            NotificationChannel chan = channelCache.getChannel(sbn.getPackageName(), not.getChannelId());
+            if (chan != null) {
+                if (Build.VERSION.SDK_INT >= 29) {
+                    bubble = not.getBubbleMetadata() != null;
+                    if (bubble) {
+                        bubbleUnread |= !not.getBubbleMetadata().isNotificationSuppressed();
+                    }
+                }
+                if (Build.VERSION.SDK_INT >= 30) {
+                    for (NotificationChannel child : channelCache.getConversations(sbn.getPackageName(), chan.getId())) {
+                        log("CHILD %s --> #%08X [%s][%s]", child.getId(), child.getLightColor(), child.shouldShowLights() ? "Y" : "N", child.getGroup() == null ? "null" : child.getGroup());
+                        conversation = true;
+                    }
+                }
+                if (groupName == null) groupName = chan.getGroup();
+
+                if (chan.shouldShowLights() || conversation) {
+                    shouldShowLights = true;
+                    c = chan.getLightColor();
+                    cChan = c;
+
+                    // Twitter passes black for some reason, make white
+                    if ((c & 0xFFFFFF) == 0) c = 0xFFFFFF;
+
+                    // There's a lot of white notifications, try using the notification accent color instead
+                    if (
+                            (
+                                    ((c & 0xFFFFFF) == 0xFFFFFF) && (
+                                            (((not.color & 0xFFFFFF) > 0) || conversation) &&
+                                            !sbn.getPackageName().equals(BuildConfig.APPLICATION_ID)
+                                    )
+                            )
+                    ) {
+                        // Set dominant channel to max brightness
+                        int r = Color.red(not.color);
+                        int g = Color.green(not.color);
+                        int b = Color.blue(not.color);
+
+                        if ((r >= g) && (r >= b)) {
+                            r = 255;
+                        } else if ((g >= r) && (g >= b)) {
+                            g = 255;
+                        } else {
+                            b = 255;
+                        }
+
+                        c = Color.rgb(r, g, b);
+                    }
+
+                    // Override colors by analyzing icon (unless system, or Holey Light itself)
+                    c = ColorAnalyzer.analyze(this, sbn.getPackageName(), c);
+
+                    // Make sure we have alpha
+                    c = c | 0xFF000000;
+                } else {
+                    if (shouldShowLights == null) {
+                        shouldShowLights = chan.shouldShowLights();
+                    } else {
+                        shouldShowLights |= chan.shouldShowLights();
+                    }
+                }
+            }
+        }
+
+        ActiveNotification actNot = new ActiveNotification(sbn.getKey(), sbn.getPackageName(), channelName, not.tickerText);
+
+        // Save to prefs, or get overridden value from prefs
+        c = settings.getColorForPackageAndChannel(sbn.getPackageName(), channelName, conversation, c, ((cChan & 0x00FFFFFF) != 0x000000) || conversation);
+        settings.setColorForPackageAndChannel(sbn.getPackageName(), channelName, conversation, c, true);
+
+        // Respect notification color being black? We normally don't want this as a lot of
+        // notifications that we do want to show would disappear, but sometimes the same
+        // channel is used with and without color
+        if (settings.isRespectNotificationColorStateForPackageAndChannel(sbn.getPackageName(), channelName)) {
+            if (((not.color & 0xFFFFFF) == 0) || (shouldShowLights != null && !shouldShowLights)) {
+                c = 0;
+            }
         }
-        if ((currentNotifications.size() > 0) && (timeout > 0)) {
-            handler.postDelayed(this::handleLEDNotifications, timeout);
+
+        // Only light up with unread bubbles. Detected by seeing if the notification is suppressed (== read)
+        if (bubble && !bubbleUnread) {
+            c = 0;
         }
-        AODControl.setAODAlarm(this);
+
+        // Ignore auto-groups
+        if (not.getGroup() != null && not.getGroup().equals("ranker_group")) {
+            c = 0;
+        }
+
+        // Make sure we have alpha (again)
+        c = c | 0xFF000000;
+
+        // user has set notification to full black, skip
+        log("%s [%s] (%s) --> #%08X / #%08X --> #%08X [%s][%s][%s][%s][%s][%s]", sbn.getKey(), sbn.getPackageName(), channelName, cChan, not.color, c, not.getSmallIcon() != null ? "I" : "x", shouldShowLights == null ? "x" : (shouldShowLights ? "Y" : "N"), conversation ? "C" : "x", bubble ? (bubbleUnread ? "U" : "B") : "x", not.getGroup() == null ? "null" : not.getGroup(), groupName == null ? "null" : groupName);
+        if ((c & 0xFFFFFF) == 0) {
+            return actNot;
+        }
+
+        // save
+        actNot.setColor(c);
+        actNot.setConversation(conversation);
+        actNot.setIcon(not.getSmallIcon());
+
+        return actNot;
     }
 
     private void apply() {
         if (!connected) return;
         Overlay overlay = Overlay.getInstance();
         if (enabled && callState == TelephonyManager.CALL_STATE_IDLE) {
-            int[] currentColors = new int[currentNotifications.size()];
-            Drawable[] currentIcons = new Drawable[currentNotifications.size()];
-            for (int i = 0; i < currentNotifications.size(); i++) {
-                currentColors[i] = currentNotifications.get(i).getColor();
-                currentIcons[i] = currentNotifications.get(i).getIconDrawable(this);
-            }
+            Snapshot snapshot = this.snapshot;
             if (overlay != null) {
-                overlay.show(currentColors, currentIcons, forceRefresh);
+                overlay.show(snapshot.colors, snapshot.icons, forceRefresh);
                 forceRefresh = false;
-                test_lastColorCount = currentColors.length;
+                test_lastColorCount = snapshot.colors.length;
             }
         } else {
             if (overlay != null) {
@@ -638,23 +860,24 @@ public class NotificationListenerService extends android.service.notification.No
 
     private void onLockscreen() {
         log("onLockscreen");
-        if (settings.isSeenOnLockscreen(true)) {
+        if (settings.getSnapshot().seenOnLockscreen) {
             tracker.markAllAsSeen();
-            handleLEDNotifications();
+            handleLEDNotifications(NotificationEventBatcher.Type.STATE);
         }
     }
 
     private void onUserPresent() {
         log("onUserPresent");
-        if (settings.isSeenOnUserPresent(true)) {
+        if (settings.getSnapshot().seenOnUserPresent) {
             tracker.markAllAsSeen();
-            handleLEDNotifications();
+            handleLEDNotifications(NotificationEventBatcher.Type.STATE);
         }
         startMotionSensor();
     }
 
     private boolean canMarkAsReadFromPickup() {
-        return settings.isSeenPickupWhile(settings.getMode(Battery.isCharging(this), isUserPresent), true);
+        Settings.Snapshot values = settings.getSnapshot();
+        return values.isSeenPickupWhile(values.getMode(Battery.isCharging(this), isUserPresent));
     }
 
     private final MotionSensor.OnMotionStateListener onMotionStateListener = (motionState, for_millis) -> {
@@ -670,7 +893,7 @@ public class NotificationListenerService extends android.service.notification.No
                 if (canMarkAsReadFromPickup()) {
                     log("onMovement: pickup");
                     tracker.markAllAsSeen();
-                    handleLEDNotifications();
+                    handleLEDNotifications(NotificationEventBatcher.Type.STATE);
                 }
             }
             stationary_for_ms = 0;
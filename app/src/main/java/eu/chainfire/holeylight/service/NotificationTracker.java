@@ -24,8 +24,11 @@ import android.os.SystemClock;
 import android.service.notification.StatusBarNotification;
 
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import eu.chainfire.holeylight.BuildConfig;
 import eu.chainfire.holeylight.test.TestRunner;
@@ -116,23 +119,32 @@ public class NotificationTracker {
         return instance;
     }
 
+    public static NotificationTracker test_createInstance() {
+        return new NotificationTracker();
+    }
+
     private NotificationTracker() {
     }
 
-    private final List<Item> items = new ArrayList<>();
+    // Keyed by notification key, active notifications have unique keys. An item only matches if
+    // post time and when are equal as well, see Item.match(). Public methods are synchronized as
+    // the listener prunes from its processing thread.
+    private final Map<String, Item> items = new LinkedHashMap<>();
 
     private void load(Item[] array) {
         items.clear();
         if (array != null) {
-            items.addAll(Arrays.asList(array));
+            for (Item item : array) {
+                items.put(item.key, item);
+            }
         }
     }
 
     private Item[] save() {
-        return items.toArray(new Item[0]);
+        return items.values().toArray(new Item[0]);
     }
 
-    public void loadFromBytes(byte[] bytes) {
+    public synchronized void loadFromBytes(byte[] bytes) {
         // Using Parcelables with AlarmManager doesn't work these days
 
         if (bytes == null) {
@@ -150,7 +162,7 @@ public class NotificationTracker {
         }
     }
 
-    public byte[] saveToBytes() {
+    public synchronized byte[] saveToBytes() {
         // Using Parcelables with AlarmManager doesn't work these days
 
         Item[] items = save();
@@ -164,23 +176,22 @@ public class NotificationTracker {
         return result;
     }
 
-    public StatusBarNotification[] prune(StatusBarNotification[] active, boolean addNewNotifications, int timeout, Boolean screenOnForTracking, boolean screenOn) {
+    public synchronized StatusBarNotification[] prune(StatusBarNotification[] active, boolean addNewNotifications, int timeout, Boolean screenOnForTracking, boolean screenOn) {
         long now = SystemClock.elapsedRealtime();
+        boolean testRunning = TestRunner.isRunning();
 
-        // remove notifications from our own list that are no longer active
-        for (int i = items.size() - 1; i >= 0; i--) {
-            Item item = items.get(i);
-
-            boolean found = false;
-            for (StatusBarNotification sbn : active) {
-                if (item.match(sbn)) {
-                    found = true;
-                    break;
-                }
-            }
+        Map<String, StatusBarNotification> activeByKey = new HashMap<>(active.length * 2);
+        for (StatusBarNotification sbn : active) {
+            activeByKey.put(sbn.getKey(), sbn);
+        }
 
-            if (!found) {
-                items.remove(i);
+        // remove notifications from our own list that are no longer active
+        Iterator<Item> iterator = items.values().iterator();
+        while (iterator.hasNext()) {
+            Item item = iterator.next();
+            StatusBarNotification sbn = activeByKey.get(item.key);
+            if ((sbn == null) || !item.match(sbn)) {
+                iterator.remove();
             }
         }
 
@@ -188,28 +199,23 @@ public class NotificationTracker {
         List<StatusBarNotification> sbns = new ArrayList<>();
         for (StatusBarNotification sbn : active) {
             boolean isSelf = BuildConfig.APPLICATION_ID.equals(sbn.getPackageName());
-            boolean blockSelf = isSelf && !screenOn && !TestRunner.isRunning();
-            boolean blockOther = !isSelf && TestRunner.isRunning();
-
-            boolean found = false;
-            for (Item item : items) {
-                if (item.match(sbn)) {
-                    if (!item.getSeen(screenOnForTracking) || sbn.getPackageName().equals(BuildConfig.APPLICATION_ID)) {
-                        if ((timeout > 0) && (now - item.firstSeen > timeout) && (item.shown > 0) && !sbn.getPackageName().equals(BuildConfig.APPLICATION_ID)) {
-                            item.setSeen(screenOnForTracking);
-                        } else {
-                            item.shown++;
-                            if (!blockSelf && !blockOther) {
-                                sbns.add(sbn);
-                            }
+            boolean blockSelf = isSelf && !screenOn && !testRunning;
+            boolean blockOther = !isSelf && testRunning;
+
+            Item item = items.get(sbn.getKey());
+            if ((item != null) && item.match(sbn)) {
+                if (!item.getSeen(screenOnForTracking) || isSelf) {
+                    if ((timeout > 0) && (now - item.firstSeen > timeout) && (item.shown > 0) && !isSelf) {
+                        item.setSeen(screenOnForTracking);
+                    } else {
+                        item.shown++;
+                        if (!blockSelf && !blockOther) {
+                            sbns.add(sbn);
                         }
                     }
-                    found = true;
-                    break;
                 }
-            }
-            if (!found) {
-                Item item = new Item(sbn);
+            } else {
+                item = new Item(sbn);
                 if (addNewNotifications || isSelf) {
                     if (!blockSelf && !blockOther) {
                         sbns.add(sbn);
@@ -217,18 +223,18 @@ public class NotificationTracker {
                 } else {
                     item.setSeen(screenOnForTracking);
                 }
-                items.add(item);
+                items.put(item.key, item);
             }
         }
         return sbns.toArray(new StatusBarNotification[0]);
     }
 
-    public void clear() {
+    public synchronized void clear() {
         items.clear();
     }
 
-    public void markAllAsSeen() {
-        for (Item item : items) {
+    public synchronized void markAllAsSeen() {
+        for (Item item : items.values()) {
             item.setSeen(null);
         }
     }
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2019-2021 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.chainfire.holeylight.service;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/*
+    Active notifications as maintained from posted/removed events, and the resolved result per
+    notification key. Only rebuilt from a full list of active notifications after a rescan has
+    been requested; events received while a rescan is pending are ignored, as the rescan will
+    see their result.
+
+    Not thread-safe, the owner confines it to a single thread.
+ */
+@SuppressWarnings({ "WeakerAccess" })
+public class TrackedNotifications<N, R> {
+    public interface Accessor<N> {
+        String getKey(N notification);
+        long getPostTime(N notification);
+        long getWhen(N notification);
+    }
+
+    private final Accessor<N> accessor;
+    private final Map<String, N> tracked = new LinkedHashMap<>();
+    private final Map<String, R> resolved = new HashMap<>();
+    private final Comparator<N> order;
+    private boolean rescan = true;
+
+    public TrackedNotifications(Accessor<N> accessor) {
+        this.accessor = accessor;
+        // newest first, so both the incremental and rescan paths feed prune in the same order
+        order = (o1, o2) -> {
+            int ret = Long.compare(accessor.getPostTime(o2), accessor.getPostTime(o1));
+            return ret != 0 ? ret : accessor.getKey(o1).compareTo(accessor.getKey(o2));
+        };
+    }
+
+    public void requestRescan() {
+        rescan = true;
+    }
+
+    public boolean isRescanPending() {
+        return rescan;
+    }
+
+    public void posted(N notification) {
+        if (rescan || (notification == null)) return;
+        String key = accessor.getKey(notification);
+        tracked.put(key, notification);
+        resolved.remove(key);
+    }
+
+    public void removed(N notification) {
+        if (rescan || (notification == null)) return;
+        String key = accessor.getKey(notification);
+        tracked.remove(key);
+        resolved.remove(key);
+    }
+
+    /**
+     * Replaces the tracked notifications with the full list of active notifications. What was
+     * resolved for notifications that did not change is kept, ranking updates trigger a rescan
+     * but usually don't change anything.
+     *
+     * @return Whether the set of notifications differs from what was tracked
+     */
+    public boolean rescan(N[] active) {
+        boolean changed = false;
+        Map<String, N> previous = new HashMap<>(tracked);
+        tracked.clear();
+        if (active != null) {
+            for (N notification : active) {
+                String key = accessor.getKey(notification);
+                tracked.put(key, notification);
+                if (!isSame(previous.get(key), notification)) {
+                    resolved.remove(key);
+                    changed = true;
+                }
+            }
+        }
+        if (previous.size() != tracked.size()) changed = true;
+        resolved.keySet().retainAll(tracked.keySet());
+        rescan = false;
+        return changed;
+    }
+
+    private boolean isSame(N a, N b) {
+        return (a != null) && (b != null) && (accessor.getPostTime(a) == accessor.getPostTime(b)) && (accessor.getWhen(a) == accessor.getWhen(b));
+    }
+
+    /**
+     * @return Tracked notifications, newest first
+     */
+    public N[] getNotifications(N[] array) {
+        N[] ret = tracked.values().toArray(array);
+        Arrays.sort(ret, order);
+        return ret;
+    }
+
+    public R getResolved(String key) {
+        return resolved.get(key);
+    }
+
+    public void putResolved(String key, R value) {
+        resolved.put(key, value);
+    }
+
+    public void invalidateResolved() {
+        resolved.clear();
+    }
+
+    public void invalidateResolved(Predicate<R> filter) {
+        resolved.values().removeIf(filter);
+    }
+}
@@ -90,7 +90,7 @@ public class MainActivity extends BaseActivity implements Settings.OnSettingsCha
 
         handler = new Handler();
         settings = Settings.getInstance(this);
-        settings.registerOnSettingsChangedListener(this);
+        settings.registerOnSettingsChangedListener(this, Settings.Group.MODES);
 
         startActivity(new Intent(this, DetectCutoutActivity.class));
     }
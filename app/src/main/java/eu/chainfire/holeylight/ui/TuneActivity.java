@@ -54,7 +54,7 @@ public class TuneActivity extends BaseActivity implements Settings.OnSettingsCha
         super.onStart();
         TestNotification.show(this, TestNotification.NOTIFICATION_ID_TUNE);
         updateLabels();
-        settings.registerOnSettingsChangedListener(this);
+        settings.registerOnSettingsChangedListener(this, Settings.Group.DIMENSIONS);
         Settings.tuning = true;
     }
 
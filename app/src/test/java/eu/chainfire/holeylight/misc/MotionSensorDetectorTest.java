@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2019-2021 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.chainfire.holeylight.misc;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MotionSensorDetectorTest {
+    private static final int HZ = 25;
+    private static final float G = 9.81f;
+    private static final float NOISE = 0.02f;
+
+    private static class Transition {
+        private final long time;
+        private final MotionSensor.MotionState state;
+
+        private Transition(long time, MotionSensor.MotionState state) {
+            this.time = time;
+            this.state = state;
+        }
+
+        @Override
+        public String toString() {
+            return state + "@" + time;
+        }
+    }
+
+    /*
+        Synthetic traces, not recordings: x, y, z per sample at 25 Hz, modelling a phone flat on a
+        desk as gravity on z plus gaussian sensor noise, with pickup and vibration added on top.
+        Seeded, so every run replays the same samples.
+     */
+    private static float[] desk(int seconds, long seed) {
+        Random random = new Random(seed);
+        float[] trace = new float[seconds * HZ * 3];
+        for (int i = 0; i < trace.length / 3; i++) {
+            trace[i * 3] = (float)random.nextGaussian() * NOISE;
+            trace[i * 3 + 1] = (float)random.nextGaussian() * NOISE;
+            trace[i * 3 + 2] = G + (float)random.nextGaussian() * NOISE;
+        }
+        return trace;
+    }
+
+    // picked up at pickupSeconds, tilted 60 degrees towards the user over a second, then held
+    // with some hand tremor
+    private static float[] pickup(int seconds, int pickupSeconds) {
+        Random random = new Random(1);
+        float[] trace = desk(seconds, 2);
+        for (int i = pickupSeconds * HZ; i < trace.length / 3; i++) {
+            float t = (float)(i - pickupSeconds * HZ) / HZ;
+            float tilt = (float)Math.toRadians(60f * Math.min(t, 1f));
+            float tremor = (float)random.nextGaussian() * 0.05f;
+            trace[i * 3 + 1] = G * (float)Math.sin(tilt) + tremor;
+            trace[i * 3 + 2] = G * (float)Math.cos(tilt) + tremor;
+        }
+        return trace;
+    }
+
+    // notification vibration while on the desk: one second bursts, the motor shakes the phone
+    // along z at well above the sampling rate, so samples alternate around gravity
+    private static float[] vibration(int seconds, int[] burstSeconds, float amplitude) {
+        float[] trace = desk(seconds, 3);
+        for (int burst : burstSeconds) {
+            for (int i = burst * HZ; i < (burst + 1) * HZ; i++) {
+                trace[i * 3 + 2] += (i % 2 == 0 ? amplitude : -amplitude);
+            }
+        }
+        return trace;
+    }
+
+    private static List<Transition> replay(MotionSensor.Detector detector, float[] trace) {
+        List<Transition> transitions = new ArrayList<>();
+        detector.reset(1);
+        for (int i = 0; i < trace.length / 3; i++) {
+            long now = 1 + (i * 1000L) / HZ;
+            if (detector.onSample(now, trace[i * 3], trace[i * 3 + 1], trace[i * 3 + 2]) == MotionSensor.Detector.Result.TRANSITION) {
+                transitions.add(new Transition(now, detector.getMotionState()));
+            }
+        }
+        return transitions;
+    }
+
+    @Test
+    public void desk() {
+        List<Transition> transitions = replay(new MotionSensor.Detector(), desk(30, 0));
+        assertEquals(transitions.toString(), 1, transitions.size());
+        assertEquals(MotionSensor.MotionState.STATIONARY, transitions.get(0).state);
+        // the first window
+        assertTrue(transitions.toString(), transitions.get(0).time <= 250);
+    }
+
+    @Test
+    public void pickup() {
+        List<Transition> transitions = replay(new MotionSensor.Detector(), pickup(20, 15));
+        assertEquals(transitions.toString(), 3, transitions.size());
+        assertEquals(MotionSensor.MotionState.STATIONARY, transitions.get(0).state);
+        assertEquals(MotionSensor.MotionState.MOVING, transitions.get(1).state);
+        assertEquals(MotionSensor.MotionState.STATIONARY, transitions.get(2).state);
+
+        long delay = transitions.get(1).time - 1 - 15000;
+        assertTrue("delay " + delay, (delay > 0) && (delay <= 500));
+
+        // held still again once the tilt ages out of the angle history
+        long settled = transitions.get(2).time - 1 - 16000;
+        assertTrue("settled " + settled, (settled > 0) && (settled <= 1500));
+    }
+
+    @Test
+    public void vibration() {
+        // a typical notification buzz doesn't tilt the phone, and stays below the energy threshold
+        List<Transition> transitions = replay(new MotionSensor.Detector(), vibration(20, new int[] { 5, 7, 12 }, 1.5f));
+        assertEquals(transitions.toString(), 1, transitions.size());
+        assertEquals(MotionSensor.MotionState.STATIONARY, transitions.get(0).state);
+    }
+
+    @Test
+    public void strongVibration() {
+        // hard enough to cross the energy threshold, reported as movement only while it lasts
+        List<Transition> transitions = replay(new MotionSensor.Detector(), vibration(20, new int[] { 5 }, 4f));
+        assertEquals(transitions.toString(), 3, transitions.size());
+        assertEquals(MotionSensor.MotionState.MOVING, transitions.get(1).state);
+        assertEquals(MotionSensor.MotionState.STATIONARY, transitions.get(2).state);
+        assertTrue(transitions.toString(), (transitions.get(1).time > 5000) && (transitions.get(1).time <= 5000 + 250));
+        assertTrue(transitions.toString(), (transitions.get(2).time > 6000) && (transitions.get(2).time <= 6000 + 250));
+    }
+
+    @Test
+    public void resetDuration() {
+        MotionSensor.Detector detector = new MotionSensor.Detector();
+        float[] trace = desk(2, 0);
+        replay(detector, trace);
+        assertEquals(MotionSensor.MotionState.STATIONARY, detector.getMotionState());
+
+        // the next completed window reports the (same) state as a transition, restarting its duration
+        detector.resetDuration();
+        long now = 2001;
+        MotionSensor.Detector.Result result = MotionSensor.Detector.Result.NONE;
+        for (int i = 0; (i < HZ) && (result == MotionSensor.Detector.Result.NONE); i++) {
+            now += 1000 / HZ;
+            result = detector.onSample(now, 0f, 0f, G);
+        }
+        assertEquals(MotionSensor.Detector.Result.TRANSITION, result);
+        assertEquals(now, detector.getMotionStateStart());
+    }
+}
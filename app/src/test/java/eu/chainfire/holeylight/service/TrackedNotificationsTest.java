@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2019-2021 Jorrit "Chainfire" Jongma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package eu.chainfire.holeylight.service;
+
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TrackedNotificationsTest {
+    private static class Notification {
+        private final String key;
+        private final long postTime;
+        private final long when;
+
+        private Notification(String key, long postTime, long when) {
+            this.key = key;
+            this.postTime = postTime;
+            this.when = when;
+        }
+
+        @Override
+        public String toString() {
+            return key + "@" + postTime + "/" + when;
+        }
+    }
+
+    private static final TrackedNotifications.Accessor<Notification> ACCESSOR = new TrackedNotifications.Accessor<Notification>() {
+        @Override public String getKey(Notification notification) { return notification.key; }
+        @Override public long getPostTime(Notification notification) { return notification.postTime; }
+        @Override public long getWhen(Notification notification) { return notification.when; }
+    };
+
+    /*
+        Recorded listener events, one per line: "P key postTime when" for posted, "R key" for
+        removed, "K" for a ranking update, and "-" for the (batched) processing run. Includes
+        updates of existing notifications, removal of unknown keys, repeated posts and ranking
+        updates between and during bursts.
+     */
+    private static final String[] EVENTS = new String[] {
+            "P 0|com.whatsapp|1 1000 1000",
+            "P 0|com.google.android.gm|7 1100 1100",
+            "-",
+            "K",
+            "-",
+            "P 0|com.whatsapp|1 1200 1000",
+            "P 0|org.telegram|3 1250 1250",
+            "R 0|com.google.android.gm|7",
+            "K",
+            "-",
+            "P 0|com.whatsapp|1 1300 1300",
+            "P 0|com.whatsapp|1 1300 1300",
+            "R 0|com.unknown|9",
+            "-",
+            "P 0|com.slack|2 1400 1400",
+            "K",
+            "P 0|com.slack|2 1400 1450",
+            "-",
+            "R 0|org.telegram|3",
+            "R 0|com.whatsapp|1",
+            "-",
+            "K",
+            "-",
+            "R 0|com.slack|2",
+            "-",
+            "P 0|com.whatsapp|1 1500 1500",
+            "P 0|org.telegram|3 1500 1500",
+            "P 0|com.google.android.gm|7 1500 1490",
+            "-",
+    };
+
+    private static Notification[] toArray(Map<String, Notification> active) {
+        return active.values().toArray(new Notification[0]);
+    }
+
+    private static TrackedNotifications<Notification, String> rescanned(Map<String, Notification> active) {
+        TrackedNotifications<Notification, String> ret = new TrackedNotifications<>(ACCESSOR);
+        ret.rescan(toArray(active));
+        return ret;
+    }
+
+    @Test
+    public void replayMatchesRescan() {
+        Map<String, Notification> active = new LinkedHashMap<>();
+        TrackedNotifications<Notification, String> tracked = new TrackedNotifications<>(ACCESSOR);
+        int runs = 0;
+        int rescans = 0;
+
+        for (String event : EVENTS) {
+            String[] parts = event.split(" ");
+            switch (parts[0]) {
+                case "P":
+                    Notification notification = new Notification(parts[1], Long.parseLong(parts[2]), Long.parseLong(parts[3]));
+                    active.put(notification.key, notification);
+                    tracked.posted(notification);
+                    break;
+                case "R":
+                    // the listener also receives removals of notifications it never saw posted
+                    Notification removed = active.remove(parts[1]);
+                    tracked.removed(removed != null ? removed : new Notification(parts[1], 0, 0));
+                    break;
+                case "K":
+                    tracked.requestRescan();
+                    break;
+                case "-":
+                    if (tracked.isRescanPending()) {
+                        tracked.rescan(toArray(active));
+                        rescans++;
+                    }
+                    runs++;
+
+                    Notification[] expected = rescanned(active).getNotifications(new Notification[0]);
+                    assertArrayEquals("run " + runs, expected, tracked.getNotifications(new Notification[0]));
+
+                    // a rescan right now must not find anything the events didn't tell us
+                    tracked.requestRescan();
+                    assertFalse("run " + runs, tracked.rescan(toArray(active)));
+                    break;
+            }
+        }
+
+        assertEquals(9, runs);
+        // the initial run, and runs that followed a ranking update
+        assertEquals(5, rescans);
+    }
+
+    @Test
+    public void newestFirst() {
+        Map<String, Notification> active = new LinkedHashMap<>();
+        active.put("a", new Notification("a", 100, 100));
+        active.put("c", new Notification("c", 300, 300));
+        active.put("b", new Notification("b", 300, 200));
+        Notification[] ret = rescanned(active).getNotifications(new Notification[0]);
+        assertEquals("b", ret[0].key);
+        assertEquals("c", ret[1].key);
+        assertEquals("a", ret[2].key);
+    }
+
+    @Test
+    public void eventsIgnoredWhileRescanPending() {
+        TrackedNotifications<Notification, String> tracked = new TrackedNotifications<>(ACCESSOR);
+        tracked.posted(new Notification("a", 100, 100));
+        assertTrue(tracked.isRescanPending());
+        assertEquals(0, tracked.getNotifications(new Notification[0]).length);
+    }
+
+    @Test
+    public void resolvedKeptForUnchanged() {
+        Map<String, Notification> active = new LinkedHashMap<>();
+        active.put("a", new Notification("a", 100, 100));
+        active.put("b", new Notification("b", 200, 200));
+        TrackedNotifications<Notification, String> tracked = rescanned(active);
+        tracked.putResolved("a", "resolved a");
+        tracked.putResolved("b", "resolved b");
+
+        // ranking update without changes
+        tracked.requestRescan();
+        assertFalse(tracked.rescan(toArray(active)));
+        assertEquals("resolved a", tracked.getResolved("a"));
+        assertEquals("resolved b", tracked.getResolved("b"));
+
+        // updated while a rescan was pending, only seen by the rescan
+        tracked.requestRescan();
+        active.put("b", new Notification("b", 300, 300));
+        tracked.posted(active.get("b"));
+        assertTrue(tracked.rescan(toArray(active)));
+        assertEquals("resolved a", tracked.getResolved("a"));
+        assertNull(tracked.getResolved("b"));
+
+        // incremental
+        tracked.putResolved("b", "resolved b");
+        tracked.removed(active.remove("a"));
+        assertNull(tracked.getResolved("a"));
+        assertEquals("resolved b", tracked.getResolved("b"));
+
+        tracked.invalidateResolved(value -> value.endsWith("b"));
+        assertNull(tracked.getResolved("b"));
+    }
+}